@@ -7,8 +7,12 @@ package com.mycompany.client;
  *
  * @author KIIT
  */
+import com.mycompany.transport.EndpointCache;
+import com.mycompany.transport.Multicast;
+import com.mycompany.transport.TimeSubscriber;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -16,11 +20,11 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class Client {
     // List of time servers to try
-    private static final List<ServerInfo> TIME_SERVERS = Arrays.asList(
+    private static final List<ServerInfo> TIME_SERVERS = new ArrayList<>(Arrays.asList(
         new ServerInfo("localhost", 0001),
         new ServerInfo("localhost", 0002),  // Second server (can be changed to actual server)
         new ServerInfo("localhost", 0003)   // Third server (can be changed to actual server)
-    );
+    ));
     
     // Timeout settings
     private static final int SOCKET_TIMEOUT_MS = 5000;
@@ -29,7 +33,61 @@ public class Client {
     // Timeout approach
     private static final boolean USE_SOCKET_TIMEOUT = true; // true = socket timeout, false = thread sleep
     
+    // Subscription mode: interval asked for unless given, and pushes shown before leaving
+    private static final int BUFFER_SIZE = 1024;
+    private static final long SUBSCRIBE_INTERVAL_MS = 1000;
+    private static final int SUBSCRIBE_UPDATES = 20;
+    // Multicast mode: announcements shown before leaving
+    private static final int MULTICAST_ANNOUNCEMENTS = 10;
+    
     public static void main(String[] args) {
+        // Pass --server=<host>:<port> to try another server first, e.g. an ImpairmentProxy
+        for (String arg : args) {
+            if (arg.startsWith("--server=")) {
+                String server = arg.substring("--server=".length());
+                int colon = server.lastIndexOf(':');
+                TIME_SERVERS.add(0, new ServerInfo(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1))));
+            }
+        }
+        
+        for (String arg : args) {
+            // Pass --multicast=<group>:<port>, and optionally --multicast-if=<interface>, to
+            // listen to a server's announcements instead
+            if (arg.startsWith("--multicast=")) {
+                String interfaceName = null;
+                for (String other : args) {
+                    if (other.startsWith("--multicast-if=")) {
+                        interfaceName = other.substring("--multicast-if=".length());
+                    }
+                }
+                try {
+                    InetSocketAddress group = Multicast.parseGroup(arg.substring("--multicast=".length()));
+                    for (ServerInfo server : TIME_SERVERS) {
+                        if (listenForAnnouncements(server, group, interfaceName, MULTICAST_ANNOUNCEMENTS)) {
+                            return;
+                        }
+                        System.out.println("Trying next server...");
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error in client: " + e.getMessage());
+                }
+                return;
+            }
+            // Pass --subscribe or --subscribe=<interval ms> to have the time pushed instead
+            if (arg.startsWith("--subscribe")) {
+                long interval = arg.startsWith("--subscribe=")
+                        ? Long.parseLong(arg.substring("--subscribe=".length())) : SUBSCRIBE_INTERVAL_MS;
+                for (ServerInfo server : TIME_SERVERS) {
+                    if (subscribe(server, interval, SUBSCRIBE_UPDATES)) {
+                        return;
+                    }
+                    System.out.println("Trying next server...");
+                }
+                System.out.println("Failed to subscribe to any time server");
+                return;
+            }
+        }
+        
         System.out.println("Using " + (USE_SOCKET_TIMEOUT ? "socket timeout" : "thread sleep") + " approach");
         
         long startTime = System.currentTimeMillis();
@@ -55,6 +113,33 @@ public class Client {
         System.out.println("Total execution time: " + (endTime - startTime) + " ms");
     }
     
+    // Listens to the server's multicast time announcements instead of asking for the time;
+    // see Multicast.listen for how the clock offset is estimated
+    private static boolean listenForAnnouncements(ServerInfo server, InetSocketAddress group,
+            String interfaceName, int announcements) {
+        try {
+            // Time requests carry the client's own address
+            String localHost = InetAddress.getLocalHost().getHostAddress();
+            return Multicast.listen(EndpointCache.shared().resolve(server.getAddress(), server.getPort()),
+                    port -> (localHost + ":" + port).getBytes(), group, interfaceName, announcements, SOCKET_TIMEOUT_MS);
+        } catch (UnknownHostException e) {
+            System.err.println("Multicast error: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    // Subscribes to pushed timestamps instead of sending a request for each one; see
+    // TimeSubscriber for the protocol
+    private static boolean subscribe(ServerInfo server, long intervalMillis, int updates) {
+        try {
+            return TimeSubscriber.subscribe(EndpointCache.shared().resolve(server.getAddress(), server.getPort()),
+                    intervalMillis, updates, SOCKET_TIMEOUT_MS);
+        } catch (UnknownHostException e) {
+            System.err.println("Subscription error: " + e.getMessage());
+            return false;
+        }
+    }
+    
     private static boolean connectToServer(ServerInfo server) {
         System.out.println("Attempting to connect to server at " + server.getAddress() + ":" + server.getPort());
         
@@ -110,12 +195,11 @@ public class Client {
                     String clientInfo = clientIP.getHostAddress() + ":" + clientPort;
                     byte[] sendBuffer = clientInfo.getBytes();
                     
-                    // Create packet
+                    // Create packet; the server is resolved at most once per cache TTL
                     DatagramPacket sendPacket = new DatagramPacket(
                         sendBuffer,
                         sendBuffer.length,
-                        InetAddress.getByName(server.getAddress()),
-                        server.getPort()
+                        EndpointCache.shared().resolve(server.getAddress(), server.getPort())
                     );
                     
                     // Send packet
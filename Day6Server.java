@@ -7,73 +7,208 @@ package com.mycompany.server;
  *
  * @author KIIT
  */
+import com.mycompany.transport.Codec;
+import com.mycompany.transport.DatagramTransport;
+import com.mycompany.transport.Engine;
+import com.mycompany.transport.Handler;
+import com.mycompany.transport.Multicast;
+import com.mycompany.transport.MulticastPublisher;
+import com.mycompany.transport.RateLimiter;
+import com.mycompany.transport.Subscriptions;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class Server {
     private static final int DEFAULT_PORT = 0002;
     private static final int THREAD_POOL_SIZE = 10;
-    private static final boolean CONCURRENT_SERVER = true; // Set to false for iterative server
+    // Per-source flood protection: sustained requests per second and burst size
+    private static final int RATE_LIMIT_PER_SECOND = 20;
+    private static final int RATE_LIMIT_BURST = 40;
+    private static final int RATE_LIMIT_CAPACITY = 1 << 14;
+
+    // Upper bound on how long a drain waits for queued requests and their replies
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+    // Time subscriptions: pushes go out on a 100 ms tick at intervals between the tick and
+    // a minute, and a subscriber that does not renew within the lease is dropped
+    private static final long SUBSCRIPTION_TICK_MS = 100;
+    private static final long MAX_SUBSCRIPTION_INTERVAL_MS = 60000;
+    private static final long SUBSCRIPTION_LEASE_MS = 30000;
+    private static final int MAX_SUBSCRIBERS = 50000;
+    // Multicast announcements: how often, and how many router hops they may cross
+    private static final long MULTICAST_INTERVAL_MS = 1000;
+    private static final int MULTICAST_TTL = 1;
+    
+    // How the socket is read and requests are run; pick with --engine=blocking|selector|virtual
+    private static Engine engine = Engine.BLOCKING;
+    // Where requests run; pick with --dispatch=adaptive|concurrent|iterative. Adaptive
+    // answers on the receive thread while that is cheap and uses the pool otherwise. It
+    // judges by how long the handler takes, so requests are not logged in that mode.
+    private static String dispatch = "adaptive";
+    private static DatagramTransport<String> transport;
+    private static Subscriptions<String> subscriptions;
+    // Set with --multicast=<group>:<port> and optionally --multicast-if=<interface>;
+    // announcements read "TIME:<epoch ms>:<time as in a unicast reply>"
+    private static InetSocketAddress multicastGroup;
+    private static String multicastInterface;
+    private static MulticastPublisher<String> multicastPublisher;
+    // Set with --capture=<file> to record incoming requests for TraceReplay
+    private static Path capturePath;
+    private static int serverPort;
 
     public static void main(String[] args) {
         int port = DEFAULT_PORT;
         
         // Parse port from command line arguments if provided
-        if (args.length > 0) {
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = Engine.parse(arg.substring("--engine=".length()));
+                continue;
+            }
+            if (arg.startsWith("--dispatch=")) {
+                dispatch = arg.substring("--dispatch=".length());
+                if (!dispatch.matches("adaptive|concurrent|iterative")) {
+                    System.err.println("Unknown dispatch mode " + dispatch + ". Using adaptive");
+                    dispatch = "adaptive";
+                }
+                continue;
+            }
+            if (arg.startsWith("--multicast=")) {
+                try {
+                    multicastGroup = Multicast.parseGroup(arg.substring("--multicast=".length()));
+                } catch (IOException e) {
+                    System.err.println("Multicast disabled: " + e.getMessage());
+                }
+                continue;
+            }
+            if (arg.startsWith("--multicast-if=")) {
+                multicastInterface = arg.substring("--multicast-if=".length());
+                continue;
+            }
+            if (arg.startsWith("--capture=")) {
+                capturePath = Paths.get(arg.substring("--capture=".length()));
+                continue;
+            }
             try {
-                port = Integer.parseInt(args[0]);
+                port = Integer.parseInt(arg);
             } catch (NumberFormatException e) {
                 System.err.println("Invalid port number. Using default port " + DEFAULT_PORT);
             }
         }
         
-        DatagramSocket socket = null;
-        
         try {
-            socket = new DatagramSocket(port);
-            System.out.println("Server started on port " + port);
-            System.out.println(CONCURRENT_SERVER ? "Running in concurrent mode" : "Running in iterative mode");
-            
-            ExecutorService executor = null;
-            if (CONCURRENT_SERVER) {
-                executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-            }
-            
-            while (true) {
-                byte[] receiveBuffer = new byte[1024];
-                final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-                
-                socket.receive(receivePacket);
-                
-                // Added print statement to display client IP and port number
-                System.out.println("Client connected from IP: " + receivePacket.getAddress().getHostAddress() + ", Port: " + receivePacket.getPort());
-                
-                if (CONCURRENT_SERVER) {
-                    // Concurrent server - handle each client in a separate thread
-                    final DatagramSocket finalSocket = socket;
-                    final int serverPort = port;
-                    executor.execute(() -> handleClient(finalSocket, receivePacket, serverPort));
-                } else {
-                    // Iterative server - handle clients one by one
-                    handleClient(socket, receivePacket, port);
-                }
-            }
+            start(port);
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
+            return;
+        }
+        
+        // Drain in-flight work when the process is asked to stop, e.g. by a deploy script
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(DRAIN_TIMEOUT_MS)));
+        
+        try {
+            transport.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     
-    private static void handleClient(DatagramSocket socket, DatagramPacket packet, int serverPort) {
-        try {
-            String clientData = new String(packet.getData(), 0, packet.getLength());
+    // Binds the port and starts receiving requests
+    public static synchronized void start(int port) throws IOException {
+        if (transport != null && transport.isRunning()) {
+            return;
+        }
+        
+        // The iterative server answers on the receive thread itself
+        transport = new DatagramTransport<>("time-server", engine, Codec.text(Charset.defaultCharset()), new TimeHandler())
+                .workers(dispatch.equals("iterative") ? 0 : THREAD_POOL_SIZE)
+                .adaptive(dispatch.equals("adaptive"))
+                .reusePort(true)
+                .capture(capturePath);
+        transport.start(port);
+        serverPort = port;
+        
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        subscriptions = new Subscriptions<>(transport, SUBSCRIPTION_TICK_MS, SUBSCRIPTION_TICK_MS,
+                MAX_SUBSCRIPTION_INTERVAL_MS, SUBSCRIPTION_LEASE_MS, MAX_SUBSCRIBERS);
+        // Pushes are built on the single ticker thread, so the formatter is not shared
+        subscriptions.start(now -> "Server Time>>> " + formatter.format(new Date(now)) + " (from server on port " + port + ")");
+        
+        if (multicastGroup != null) {
+            SimpleDateFormat announcementFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            multicastPublisher = new MulticastPublisher<>(Codec.text(Charset.defaultCharset()), multicastGroup,
+                    Multicast.findInterface(multicastInterface), MULTICAST_INTERVAL_MS, MULTICAST_TTL);
+            multicastPublisher.start(now -> "TIME:" + now + ":Server Time>>> " + announcementFormatter.format(new Date(now))
+                    + " (from server on port " + port + ")");
+            System.out.println("Announcing the time to " + multicastGroup + " every " + MULTICAST_INTERVAL_MS + " ms");
+        }
+        System.out.println("Server started on port " + port + " using the " + engine + " engine");
+        System.out.println("Running in " + dispatch + " mode"
+                + (dispatch.equals("adaptive") ? "; requests are not logged, so handler timing reflects the work" : ""));
+    }
+    
+    // Stops taking new requests, lets queued requests finish and send their replies,
+    // then releases the port. Returns false if the deadline passed first.
+    public static synchronized boolean drain(long timeoutMillis) {
+        if (transport == null || !transport.isRunning()) {
+            return true;
+        }
+        
+        System.out.println("Draining server on port " + serverPort + "...");
+        subscriptions.stop();
+        if (multicastPublisher != null) {
+            multicastPublisher.stop();
+        }
+        boolean drained = transport.drain(timeoutMillis);
+        System.out.println(drained ? "Server drained" : "Server drain timed out");
+        if (transport.getDispatchStats() != null) {
+            System.out.println("Dispatch: " + transport.getDispatchStats());
+        }
+        return drained;
+    }
+    
+    // Stops immediately, abandoning any queued requests
+    public static synchronized void stop() {
+        if (subscriptions != null) {
+            subscriptions.stop();
+        }
+        if (multicastPublisher != null) {
+            multicastPublisher.stop();
+        }
+        if (transport != null) {
+            transport.stop();
+        }
+    }
+    
+    static class TimeHandler implements Handler<String> {
+        private final RateLimiter rateLimiter = new RateLimiter(RATE_LIMIT_CAPACITY, RATE_LIMIT_PER_SECOND, RATE_LIMIT_BURST);
+        // Console output takes tens to hundreds of microseconds, around the adaptive
+        // dispatcher's thresholds, so it would decide on the terminal rather than the work
+        private final boolean logRequests = !dispatch.equals("adaptive");
+        
+        @Override
+        public boolean admit(InetSocketAddress sender) {
+            return rateLimiter.tryAcquire(sender.getAddress(), sender.getPort());
+        }
+        
+        @Override
+        public void handle(String clientData, InetSocketAddress sender, long receivedAt,
+                DatagramTransport<String> transport) throws IOException {
+            // Added print statement to display client IP and port number
+            if (logRequests) {
+                System.out.println("Client connected from IP: " + sender.getAddress().getHostAddress() + ", Port: " + sender.getPort());
+            }
+            
+            // Subscribers get the time pushed to them rather than asking each time
+            if (clientData.startsWith("SUBSCRIBE:") || clientData.startsWith("UNSUBSCRIBE")) {
+                transport.send(subscriptions.handleRequest(clientData, sender), sender);
+                return;
+            }
+            
             String[] clientInfo = clientData.split(":");
             
             if (clientInfo.length == 2) {
@@ -84,23 +219,14 @@ public class Server {
                 SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
                 String currentTime = formatter.format(new Date());
                 
-                System.out.println("Connection from client at " + clientIp + ":" + clientPort);
+                if (logRequests) {
+                    System.out.println("Connection from client at " + clientIp + ":" + clientPort);
+                }
                 
                 // Send time back to client
                 String response = "Server Time>>> " + currentTime + " (from server on port " + serverPort + ")";
-                byte[] sendBuffer = response.getBytes();
-                
-                DatagramPacket sendPacket = new DatagramPacket(
-                    sendBuffer,
-                    sendBuffer.length,
-                    packet.getAddress(),
-                    packet.getPort()
-                );
-                
-                socket.send(sendPacket);
+                transport.send(response, sender);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 }
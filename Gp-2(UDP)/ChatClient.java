@@ -9,16 +9,29 @@ package com.mycompany.chatclient;
  *
  * @author KIIT
  */
+import com.mycompany.transport.DatagramAuth;
+import com.mycompany.transport.EndpointCache;
+import com.mycompany.transport.PayloadCompression;
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import javax.crypto.spec.SecretKeySpec;
 
 public class ChatClient {
-    // Server information
-    private static final String SERVER_HOST = "localhost";
-    private static final int SERVER_PORT = 9000;
+    // Server information; --server=<host>:<port> points the client elsewhere, e.g. at an
+    // ImpairmentProxy in front of the server
+    private static String serverHost = "localhost";
+    private static int serverPort = 9000;
     
     // Timeout for server response (in milliseconds)
     private static final int SERVER_TIMEOUT = 5000; // 5 seconds
@@ -26,16 +39,75 @@ public class ChatClient {
     // Maximum number of registration retries
     private static final int MAX_RETRIES = 3;
     
+    // Heartbeat settings used until the server advertises its own at registration. Three
+    // gaps of interval + jitter still fit in the server's 30 second timeout.
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 8000; // 8 seconds
+    private static final long DEFAULT_HEARTBEAT_JITTER = 1600;
+    
+    // A direct chat message not acknowledged by the peer within this time is sent again
+    // through the server, and so is everything after it to that peer
+    private static final long DIRECT_ACK_TIMEOUT = 1000;
+    // Chat frames carry a per-peer sequence number, "CHAT:<sender>:<seq>:<text>", echoed in
+    // "CHAT_ACK:<name>:<seq>". A message that arrives both directly and through the relay
+    // is shown once; the receiver remembers this many sequence numbers behind the newest.
+    private static final int CHAT_REPLAY_WINDOW = 64;
+    
+    // Largest datagram UDP can carry; user lists from a busy server need most of it
+    private static final int MAX_DATAGRAM = 65507;
+    
+    // Compressed user lists ("ZUSERS:" and a deflated list) are inflated to at most this
+    private static final String COMPRESSED_USERS_PREFIX = "ZUSERS:";
+    private static final int MAX_USER_LIST_BYTES = 4 * 1024 * 1024;
+    private static final PayloadCompression USER_LIST_COMPRESSION =
+            new PayloadCompression(PayloadCompression.USER_LIST_DICTIONARY, Deflater.DEFAULT_COMPRESSION, 0);
+    
+    // One scheduler sends the heartbeats of every ChatClient in this JVM
+    private static final ScheduledExecutorService HEARTBEAT_SCHEDULER = Executors.newScheduledThreadPool(1, runnable -> {
+        Thread thread = new Thread(runnable, "chat-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
     // Client information
     private String username;
     private DatagramSocket socket;
     private int clientPort;
     private final AtomicBoolean running = new AtomicBoolean(true);
     
+    // Heartbeat state; any datagram the server sees on our behalf counts as a heartbeat
+    private volatile long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private volatile long heartbeatJitter = DEFAULT_HEARTBEAT_JITTER;
+    private volatile long lastServerContact;
+    
+    // Set when a server running with --auth hands out a session key; from then on every
+    // datagram to the server is signed with the next sequence number
+    private volatile SecretKeySpec sessionKey;
+    private final AtomicLong sequence = new AtomicLong();
+    // Set when the server offers compressed user lists at registration
+    private volatile boolean compressedUserLists;
+    
     // Store information about other clients
     private final Map<String, ClientInfo> knownClients = new ConcurrentHashMap<>();
+    // Chat sequence numbers seen from each sender, kept apart from knownClients so a
+    // message from a peer missing from our user list is still only shown once
+    private final Map<String, ChatWindow> receivedChats = new ConcurrentHashMap<>();
+    // The server and peers are resolved once per TTL rather than on every send. The socket
+    // stays unconnected because peers send to it and it sends to them.
+    private final EndpointCache endpoints = EndpointCache.shared();
+    // Every heartbeat goes to the server and every datagram received is checked against
+    // it, so its address is held rather than looked up in the cache each time
+    private final EndpointCache.Endpoint server;
     
     public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--server=")) {
+                String server = arg.substring("--server=".length());
+                int colon = server.lastIndexOf(':');
+                serverHost = server.substring(0, colon);
+                serverPort = Integer.parseInt(server.substring(colon + 1));
+            }
+        }
+        
         Scanner scanner = new Scanner(System.in);
         
         System.out.print("Enter your username: ");
@@ -58,8 +130,9 @@ public class ChatClient {
         }
     }
     
-    public ChatClient(String username) throws SocketException {
+    public ChatClient(String username) throws SocketException, UnknownHostException {
         this.username = username;
+        this.server = endpoints.endpoint(serverHost, serverPort);
         this.socket = new DatagramSocket();
         this.clientPort = socket.getLocalPort();
     }
@@ -112,6 +185,7 @@ public class ChatClient {
                 if (responseMessage.startsWith("ERROR")) {
                     throw new IOException("Registration failed: " + responseMessage.substring(6));
                 }
+                applyHeartbeatParameters(responseMessage);
                 
                 // Reset timeout to infinite for normal operation
                 socket.setSoTimeout(0);
@@ -134,16 +208,20 @@ public class ChatClient {
     private void startMessageReceiver() {
         new Thread(() -> {
             try {
-                byte[] buffer = new byte[1024];
+                // Only the first getLength() bytes of a packet are ever read, so the buffer
+                // is not cleared between datagrams
+                byte[] buffer = new byte[MAX_DATAGRAM];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 
                 while (running.get()) {
-                    Arrays.fill(buffer, (byte) 0); // Clear the buffer
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    
+                    packet.setLength(buffer.length);
                     socket.receive(packet);
-                    String message = new String(packet.getData(), 0, packet.getLength());
+                    String message = decompressUserList(packet);
+                    if (message == null) {
+                        message = new String(packet.getData(), 0, packet.getLength());
+                    }
                     
-                    processIncomingMessage(packet.getAddress(), packet.getPort(), message);
+                    processIncomingMessage((InetSocketAddress) packet.getSocketAddress(), message);
                 }
             } catch (SocketException e) {
                 if (running.get()) {
@@ -155,22 +233,92 @@ public class ChatClient {
         }).start();
     }
     
+    // Turns a ZUSERS: datagram back into the USERS: message it stands for; returns null
+    // for anything else, or if it does not inflate
+    private String decompressUserList(DatagramPacket packet) {
+        int prefixLength = COMPRESSED_USERS_PREFIX.length();
+        if (packet.getLength() < prefixLength
+                || !new String(packet.getData(), 0, prefixLength).equals(COMPRESSED_USERS_PREFIX)) {
+            return null;
+        }
+        try {
+            byte[] list = USER_LIST_COMPRESSION.decompress(packet.getData(), prefixLength,
+                    packet.getLength() - prefixLength, MAX_USER_LIST_BYTES);
+            return "USERS:" + new String(list);
+        } catch (DataFormatException e) {
+            System.err.println("Error decompressing user list: " + e.getMessage());
+            return null;
+        }
+    }
+    
     private void startHeartbeatThread() {
-        new Thread(() -> {
+        // The first heartbeat lands anywhere in the first interval, so clients started
+        // together do not stay phase-aligned
+        scheduleHeartbeat(ThreadLocalRandom.current().nextLong(heartbeatInterval));
+    }
+    
+    private void scheduleHeartbeat(long delay) {
+        if (running.get()) {
+            HEARTBEAT_SCHEDULER.schedule(this::heartbeatIfIdle, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    // Sends a heartbeat only when nothing else has reached the server recently, then
+    // schedules the next check one jittered interval after the latest contact
+    private void heartbeatIfIdle() {
+        if (!running.get()) {
+            return;
+        }
+        
+        long interval = heartbeatInterval;
+        long jitter = heartbeatJitter;
+        if (System.currentTimeMillis() - lastServerContact >= interval - jitter) {
             try {
-                while (running.get()) {
-                    sendToServer("HEARTBEAT:" + username);
-                    Thread.sleep(10000); // Send heartbeat every 10 seconds
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                sendToServer("HEARTBEAT:" + username);
             } catch (IOException e) {
-                System.err.println("Error sending heartbeat: " + e.getMessage());
+                if (running.get()) {
+                    System.err.println("Error sending heartbeat: " + e.getMessage());
+                }
             }
-        }).start();
+        }
+        
+        long offset = jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0;
+        long nextDue = lastServerContact + interval + offset;
+        scheduleHeartbeat(Math.max(jitter + 1, nextDue - System.currentTimeMillis()));
+    }
+    
+    // Reads ";interval=<ms>;jitter=<ms>", the session key ";key=<base64>" and the offer of
+    // ";compress=deflate" from the registration response, if the server sent them
+    private void applyHeartbeatParameters(String responseMessage) {
+        for (String parameter : responseMessage.split(";")) {
+            String[] keyValue = parameter.split("=", 2);
+            if (keyValue.length != 2) {
+                continue;
+            }
+            if (keyValue[0].equals("key")) {
+                sessionKey = DatagramAuth.decodeKey(keyValue[1].trim());
+                sequence.set(0);
+                continue;
+            }
+            if (keyValue[0].equals("compress")) {
+                compressedUserLists = keyValue[1].trim().equals(PayloadCompression.DEFLATE);
+                continue;
+            }
+            try {
+                long value = Long.parseLong(keyValue[1].trim());
+                if (keyValue[0].equals("interval") && value > 0) {
+                    heartbeatInterval = value;
+                } else if (keyValue[0].equals("jitter") && value >= 0) {
+                    heartbeatJitter = value;
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring malformed heartbeat setting: " + parameter);
+            }
+        }
+        heartbeatJitter = Math.min(heartbeatJitter, heartbeatInterval / 2);
     }
     
-    private void processIncomingMessage(InetAddress senderAddress, int senderPort, String message) {
+    private void processIncomingMessage(InetSocketAddress source, String message) {
         // Handle server responses
         if (message.startsWith("USERS:")) {
             processUserList(message.substring(6));
@@ -184,17 +332,43 @@ public class ChatClient {
         
         // Handle chat messages from other clients
         if (message.startsWith("CHAT:")) {
-            String[] parts = message.substring(5).split(":", 2);
-            if (parts.length == 2) {
+            String[] parts = message.substring(5).split(":", 3);
+            if (parts.length == 3) {
                 String sender = parts[0];
-                String chatMessage = parts[1];
-                System.out.println("\n" + sender + ": " + chatMessage);
+                long chatSequence;
+                try {
+                    chatSequence = Long.parseLong(parts[1]);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                // A copy resent through the relay after a lost acknowledgement is dropped
+                if (receivedChats.computeIfAbsent(sender, name -> new ChatWindow()).accept(chatSequence)) {
+                    System.out.println("\n" + sender + ": " + parts[2]);
+                }
+                // Tell a peer that reached us directly that it can keep doing so, duplicate
+                // or not; relayed messages arrive from the server and need no answer
+                if (!isFromServer(source)) {
+                    sendAck(source, chatSequence);
+                }
             }
             return;
         }
+        
+        if (message.startsWith("CHAT_ACK:")) {
+            String[] parts = message.substring("CHAT_ACK:".length()).split(":", 2);
+            ClientInfo peer = knownClients.get(parts[0]);
+            if (peer != null && parts.length == 2) {
+                try {
+                    peer.acknowledge(Long.parseLong(parts[1]));
+                } catch (NumberFormatException e) {
+                    // Not an acknowledgement we sent a message for
+                }
+            }
+        }
     }
     
     private void processUserList(String userListData) {
+        Map<String, ClientInfo> previous = new HashMap<>(knownClients);
         knownClients.clear();
         
         String[] users = userListData.split(";");
@@ -205,12 +379,15 @@ public class ChatClient {
             if (userInfo.length == 3) {
                 String username = userInfo[0];
                 try {
-                    InetAddress address = InetAddress.getByName(userInfo[1]);
                     int port = Integer.parseInt(userInfo[2]);
                     
-                    // Don't add ourselves to the list
+                    // Don't add ourselves to the list. A peer whose endpoint has not changed
+                    // keeps its delivery state, including whether it needs the relay.
                     if (!username.equals(this.username)) {
-                        knownClients.put(username, new ClientInfo(username, address, port));
+                        InetSocketAddress endpoint = endpoints.resolve(userInfo[1], port);
+                        ClientInfo known = previous.get(username);
+                        knownClients.put(username, known != null && known.getEndpoint().equals(endpoint)
+                                ? known : new ClientInfo(username, endpoint));
                     }
                 } catch (Exception e) {
                     System.err.println("Error parsing user info: " + e.getMessage());
@@ -297,20 +474,64 @@ public class ChatClient {
             return;
         }
         
-        String chatMessage = "CHAT:" + username + ":" + message;
+        long chatSequence = recipientInfo.nextSequence();
+        String chatMessage = "CHAT:" + username + ":" + chatSequence + ":" + message;
+        if (recipientInfo.isRelayed()) {
+            relay(recipient, chatMessage);
+            System.out.println("To " + recipient + " (via server): " + message);
+            return;
+        }
+        
         byte[] data = chatMessage.getBytes();
         
-        DatagramPacket packet = new DatagramPacket(
-            data, data.length, 
-            recipientInfo.getAddress(), recipientInfo.getPort()
-        );
+        DatagramPacket packet = new DatagramPacket(data, data.length, recipientInfo.getEndpoint());
         
+        // Recorded first, since on a fast link the acknowledgement can beat send() returning
+        recipientInfo.sent(chatSequence, chatMessage);
         socket.send(packet);
+        HEARTBEAT_SCHEDULER.schedule(() -> checkDelivery(recipientInfo), DIRECT_ACK_TIMEOUT, TimeUnit.MILLISECONDS);
         System.out.println("To " + recipient + ": " + message);
     }
     
+    // Falls back to the server relay for a peer that has not acknowledged a direct message
+    // in time, e.g. because it is behind a NAT or firewall, and resends what it missed
+    private void checkDelivery(ClientInfo peer) {
+        List<String> unacknowledged = peer.takeIfOverdue(DIRECT_ACK_TIMEOUT);
+        if (unacknowledged.isEmpty() || !running.get()) {
+            return;
+        }
+        System.out.println("No direct reply from " + peer.getUsername() + " within " + DIRECT_ACK_TIMEOUT
+                + " ms; relaying " + unacknowledged.size() + " message(s) through the server from now on");
+        try {
+            for (String chatMessage : unacknowledged) {
+                relay(peer.getUsername(), chatMessage);
+            }
+        } catch (IOException e) {
+            System.err.println("Error relaying message: " + e.getMessage());
+        }
+    }
+    
+    // The server forwards the CHAT frame after the recipient's name as it is
+    private void relay(String recipient, String chatMessage) throws IOException {
+        sendToServer("RELAY:" + recipient + ":" + chatMessage);
+    }
+    
+    private boolean isFromServer(InetSocketAddress source) {
+        return source.equals(server.address());
+    }
+    
+    private void sendAck(InetSocketAddress peer, long chatSequence) {
+        byte[] data = ("CHAT_ACK:" + username + ":" + chatSequence).getBytes();
+        try {
+            socket.send(new DatagramPacket(data, data.length, peer));
+        } catch (IOException e) {
+            System.err.println("Error acknowledging message: " + e.getMessage());
+        }
+    }
+    
     private void requestUserList() throws IOException {
-        sendToServer("GET_USERS:");
+        // Naming ourselves lets the server count the request as a heartbeat
+        sendToServer("GET_USERS:" + username + (compressedUserLists ? ":" + PayloadCompression.DEFLATE : ""));
     }
     
     private void logout() {
@@ -326,14 +547,18 @@ public class ChatClient {
     }
     
     private void sendToServer(String message) throws IOException {
-        InetAddress serverAddress = InetAddress.getByName(SERVER_HOST);
         byte[] data = message.getBytes();
+        SecretKeySpec key = sessionKey;
+        if (key != null) {
+            data = DatagramAuth.sign(key, sequence.incrementAndGet(), data);
+        }
         
         DatagramPacket packet = new DatagramPacket(
-            data, data.length, serverAddress, SERVER_PORT
+            data, data.length, server.address()
         );
         
         socket.send(packet);
+        lastServerContact = System.currentTimeMillis();
     }
     
     private void displayCommands() {
@@ -351,25 +576,94 @@ public class ChatClient {
     // Class to store information about other clients
     private static class ClientInfo {
         private final String username;
-        private final InetAddress address;
-        private final int port;
+        private final InetSocketAddress endpoint;
+        // Set once direct delivery has failed; messages then go through the server
+        private volatile boolean relayed;
+        // Direct messages not acknowledged yet, by sequence number, oldest first
+        private final ConcurrentSkipListMap<Long, UnacknowledgedMessage> unacknowledged = new ConcurrentSkipListMap<>();
+        // Starts from the clock, so a restarted client's numbers are newer than any its
+        // peers remember from before
+        private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
         
-        public ClientInfo(String username, InetAddress address, int port) {
+        public ClientInfo(String username, InetSocketAddress endpoint) {
             this.username = username;
-            this.address = address;
-            this.port = port;
+            this.endpoint = endpoint;
+        }
+        
+        public boolean isRelayed() {
+            return relayed;
+        }
+        
+        public long nextSequence() {
+            return sequence.incrementAndGet();
+        }
+        
+        public void sent(long chatSequence, String chatMessage) {
+            unacknowledged.put(chatSequence, new UnacknowledgedMessage(chatMessage, System.currentTimeMillis()));
+        }
+        
+        // Acknowledgements name the message they confirm, so a lost one only leaves that
+        // message waiting
+        public void acknowledge(long chatSequence) {
+            unacknowledged.remove(chatSequence);
+        }
+        
+        // If the oldest direct message has waited longer than the timeout, switches to the
+        // relay and returns every unacknowledged message; otherwise returns nothing
+        public synchronized List<String> takeIfOverdue(long timeoutMillis) {
+            Map.Entry<Long, UnacknowledgedMessage> oldest = unacknowledged.firstEntry();
+            if (oldest == null || System.currentTimeMillis() - oldest.getValue().sentAt < timeoutMillis) {
+                return Collections.emptyList();
+            }
+            relayed = true;
+            List<String> messages = new ArrayList<>();
+            Map.Entry<Long, UnacknowledgedMessage> message;
+            while ((message = unacknowledged.pollFirstEntry()) != null) {
+                messages.add(message.getValue().chatMessage);
+            }
+            return messages;
         }
         
         public String getUsername() {
             return username;
         }
         
-        public InetAddress getAddress() {
-            return address;
+        public InetSocketAddress getEndpoint() {
+            return endpoint;
+        }
+    }
+    
+    // Chat sequence numbers already shown from one sender: the newest, and a bit for each
+    // of the ones before it
+    private static class ChatWindow {
+        private long highest;
+        private long window;
+        
+        // True the first time a sequence number is seen; numbers too old to remember count
+        // as seen
+        synchronized boolean accept(long chatSequence) {
+            if (chatSequence > highest) {
+                long shift = chatSequence - highest;
+                window = shift >= CHAT_REPLAY_WINDOW ? 1 : (window << shift) | 1;
+                highest = chatSequence;
+                return true;
+            }
+            long age = highest - chatSequence;
+            if (age >= CHAT_REPLAY_WINDOW || (window & (1L << age)) != 0) {
+                return false;
+            }
+            window |= 1L << age;
+            return true;
         }
+    }
+    
+    private static class UnacknowledgedMessage {
+        private final String chatMessage;
+        private final long sentAt;
         
-        public int getPort() {
-            return port;
+        public UnacknowledgedMessage(String chatMessage, long sentAt) {
+            this.chatMessage = chatMessage;
+            this.sentAt = sentAt;
         }
     }
 }
@@ -9,39 +9,377 @@ package com.mycompany.chatserver;
  *
  * @author KIIT
  */
+import com.mycompany.transport.Codec;
+import com.mycompany.transport.DatagramAuth;
+import com.mycompany.transport.DatagramTransport;
+import com.mycompany.transport.Engine;
+import com.mycompany.transport.Handler;
+import com.mycompany.transport.PayloadCompression;
+import com.mycompany.transport.RateLimiter;
+import com.mycompany.transport.RequestEvents;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import javax.crypto.spec.SecretKeySpec;
 
 public class ChatServer {
    // Port for server operations
    private static final int SERVER_PORT = 9000;
    // Time in milliseconds after which a client is considered inactive
    private static final long CLIENT_TIMEOUT = 30000; // 30 seconds
+   // Per-source flood protection: sustained datagrams per second and burst size
+   private static final int RATE_LIMIT_PER_SECOND = 20;
+   private static final int RATE_LIMIT_BURST = 40;
+   private static final int RATE_LIMIT_CAPACITY = 1 << 16;
+   // Datagrams starting with this prefix take the batched heartbeat path
+   private static final byte[] HEARTBEAT_PREFIX = "HEARTBEAT:".getBytes(StandardCharsets.US_ASCII);
+   // Datagrams starting with this prefix are relayed to another client: the rest of the
+   // datagram is "<recipient>:CHAT:<sender>:<message>"
+   private static final byte[] RELAY_PREFIX = "RELAY:".getBytes(StandardCharsets.US_ASCII);
+   private static final byte[] CHAT_PREFIX = "CHAT:".getBytes(StandardCharsets.US_ASCII);
+   private static final byte[] REGISTER_PREFIX = "REGISTER:".getBytes(StandardCharsets.US_ASCII);
+   // Most heartbeats collected in one receive cycle before they are applied
+   private static final int HEARTBEAT_BATCH_SIZE = 256;
+   // Heartbeat interval advertised to clients at registration. It grows from the minimum
+   // towards the maximum as the registry fills up. A client may wait interval + jitter
+   // between heartbeats, with jitter = interval / HEARTBEAT_JITTER_DIVISOR, so the maximum
+   // keeps three such gaps (two lost heartbeats) within CLIENT_TIMEOUT.
+   private static final long MIN_HEARTBEAT_INTERVAL = 5000;
+   private static final long HEARTBEAT_JITTER_DIVISOR = 5;
+   private static final long MAX_HEARTBEAT_INTERVAL =
+           CLIENT_TIMEOUT / 3 * HEARTBEAT_JITTER_DIVISOR / (HEARTBEAT_JITTER_DIVISOR + 1);
+   private static final int HEAVY_LOAD_CLIENTS = 10000;
+   // Default number of slots for the off-heap registry
+   private static final int OFF_HEAP_CAPACITY = 1 << 16;
+   // Requests other than batched heartbeats are queued by class, each class with its own
+   // threads, so a flood of one kind cannot starve the others. Liveness traffic also
+   // gets the highest thread priority. Snapshots that waited too long are shed: the
+   // client has likely given up on them, and answering late only deepens the backlog.
+   private static final int LIVENESS_THREADS = 2;
+   private static final int LIVENESS_QUEUE = 10000;
+   private static final int REGISTRATION_THREADS = 4;
+   private static final int REGISTRATION_QUEUE = 2000;
+   private static final int SNAPSHOT_THREADS = 2;
+   private static final int SNAPSHOT_QUEUE = 500;
+   private static final long SNAPSHOT_MAX_QUEUE_DELAY_MS = 1000;
   
-   // Thread-safe map to store active clients
-   private static final Map<String, ClientInfo> activeClients = new ConcurrentHashMap<>();
+   // Registry of active clients, chosen at startup
+   private static ClientRegistry activeClients = new HeapClientRegistry();
+   // How the socket is read and requests are run; pick with --engine=blocking|selector|virtual.
+   // Only the selector engine reads datagrams in bursts, so only it batches heartbeats; the
+   // blocking and virtual engines apply each heartbeat as soon as it is read.
+   private static Engine engine = Engine.SELECTOR;
+   private static DatagramTransport<String> transport;
+   // Set with --capture=<file> to record incoming requests for TraceReplay
+   private static Path capturePath;
+   private static final ClassifiedRequests requests = new ClassifiedRequests();
+   private static final ForwardingTable forwarding = new ForwardingTable();
+   // Set with --auth: REGISTER hands out a session key, and every later datagram must
+   // carry a valid tag and a fresh sequence number (see DatagramAuth) or it is dropped
+   private static boolean authenticate;
+   private static final SessionKeys sessionKeys = new SessionKeys();
+   // USERS: replies are offered compressed at registration unless --no-compression is
+   // given, and sent that way to clients that ask with "GET_USERS:<name>:deflate". A list
+   // is compressed once per registry version, so the slower default level is affordable.
+   private static boolean compressUserLists = true;
+   private static final PayloadCompression userListCompression =
+           new PayloadCompression(PayloadCompression.USER_LIST_DICTIONARY, Deflater.DEFAULT_COMPRESSION, 256);
+   private static final byte[] COMPRESSED_USERS_PREFIX = "ZUSERS:".getBytes(StandardCharsets.US_ASCII);
+   private static final int USERS_PREFIX_LENGTH = "USERS:".length();
+   private static long reportedUserLists;
+   // Bumped after every change to who is registered. The serialized USERS: reply is
+   // tagged with the version it was built from and only rebuilt once that is stale.
+   private static final AtomicLong registryVersion = new AtomicLong();
+   private static final Object userListLock = new Object();
+   private static volatile UserListPayload cachedUserList;
   
    public static void main(String[] args) {
-       try (DatagramSocket serverSocket = new DatagramSocket(SERVER_PORT)) {
-           System.out.println("Chat Server started on port " + SERVER_PORT);
+       if (args.length > 0 && args[0].equals("--bench-auth")) {
+           benchmarkAuth();
+           return;
+       }
+       // Pass --off-heap or --off-heap=<slots> to keep the registry outside the Java heap
+       for (String arg : args) {
+           if (arg.startsWith("--off-heap")) {
+               int capacity = arg.startsWith("--off-heap=")
+                       ? parseOffHeapCapacity(arg.substring("--off-heap=".length())) : OFF_HEAP_CAPACITY;
+               if (capacity < 0) {
+                   System.err.println("Invalid --off-heap slot count: " + arg.substring("--off-heap=".length())
+                           + ". Use --off-heap or --off-heap=<slots>, with 1 to " + OffHeapClientRegistry.MAX_CAPACITY + " slots");
+                   return;
+               }
+               activeClients = new OffHeapClientRegistry(capacity);
+               System.out.println("Using off-heap client registry with " + capacity + " slots");
+           } else if (arg.startsWith("--engine=")) {
+               engine = Engine.parse(arg.substring("--engine=".length()));
+           } else if (arg.startsWith("--capture=")) {
+               capturePath = Paths.get(arg.substring("--capture=".length()));
+           } else if (arg.equals("--auth")) {
+               authenticate = true;
+               System.out.println("Requiring authenticated datagrams after registration");
+           } else if (arg.equals("--no-compression")) {
+               compressUserLists = false;
+           }
+       }
+      
+       try {
+           // Requests are classified on the receive thread and queued to the per-class pools
+           transport = new DatagramTransport<>("chat-server", engine, Codec.text(Charset.defaultCharset()), new ChatHandler())
+                   .workers(0)
+                   .capture(capturePath);
+           transport.start(SERVER_PORT);
+           System.out.println("Chat Server started on port " + SERVER_PORT + " using the " + engine + " engine");
+           if (engine != Engine.SELECTOR) {
+               System.out.println("Heartbeats are applied one at a time; only the selector engine batches them");
+           }
           
            // Start a thread to check for inactive clients
            startClientTimeoutChecker();
           
-           byte[] receiveBuffer = new byte[1024];
-          
-           while (true) {
-               DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-               serverSocket.receive(receivePacket);
-              
-               // Process the received packet in a separate thread
-               new Thread(() -> processPacket(serverSocket, receivePacket)).start();
-           }
+           transport.join();
        } catch (IOException e) {
            System.err.println("Server Error: " + e.getMessage());
+       } catch (InterruptedException e) {
+           Thread.currentThread().interrupt();
+       }
+   }
+  
+   // Protocol side of the server. The rate limiter and heartbeat batch are only touched
+   // on the transport's receive thread.
+   private static class ChatHandler implements Handler<String> {
+       private final RateLimiter rateLimiter = new RateLimiter(RATE_LIMIT_CAPACITY, RATE_LIMIT_PER_SECOND, RATE_LIMIT_BURST);
+       private final HeartbeatBatch heartbeats = new HeartbeatBatch(HEARTBEAT_BATCH_SIZE);
+      
+       @Override
+       public boolean admit(InetSocketAddress sender) {
+           return rateLimiter.tryAcquire(sender.getAddress(), sender.getPort());
+       }
+      
+       // Heartbeats are only collected here and applied together after the burst; relayed
+       // chat is forwarded straight from the receive buffer. With --auth the tag is checked
+       // here first, and stripped so everything after sees just the payload.
+       @Override
+       public boolean handleInline(ByteBuffer datagram, InetSocketAddress sender) {
+           if (authenticate && !startsWith(datagram, REGISTER_PREFIX) && !sessionKeys.verify(datagram)) {
+               return true;
+           }
+           if (startsWith(datagram, RELAY_PREFIX)) {
+               relay(datagram, sender);
+               return true;
+           }
+           if (!startsWith(datagram, HEARTBEAT_PREFIX)) {
+               return false;
+           }
+           heartbeats.add(datagram, datagram.position() + HEARTBEAT_PREFIX.length,
+                   datagram.remaining() - HEARTBEAT_PREFIX.length);
+           if (heartbeats.isFull()) {
+               heartbeats.apply(activeClients, System.currentTimeMillis());
+           }
+           return true;
+       }
+      
+       // Forwards the CHAT frame inside a RELAY datagram to the recipient's endpoint. Only
+       // the two names are located; the frame is sent as a slice of the receive buffer,
+       // never decoded or rebuilt. The relay also counts as the sender's heartbeat.
+       private void relay(ByteBuffer datagram, InetSocketAddress sender) {
+           long start = System.nanoTime();
+           int end = datagram.limit();
+           int nameStart = datagram.position() + RELAY_PREFIX.length;
+           int nameEnd = indexOf(datagram, (byte) ':', nameStart);
+           int frameStart = nameEnd + 1;
+           int senderEnd = nameEnd < 0 ? -1 : indexOf(datagram, (byte) ':', frameStart + CHAT_PREFIX.length);
+           if (senderEnd < 0 || !startsWith(datagram.slice(frameStart, end - frameStart), CHAT_PREFIX)) {
+               forwarding.malformed.incrementAndGet();
+               return;
+           }
+          
+           // Without --auth the only proof of who sent the frame is where it came from, so it
+           // must be the endpoint the sender registered from. Otherwise any host could chat
+           // as any user, through the NATs that would have stopped it, and keep dead
+           // sessions alive.
+           int senderNameStart = frameStart + CHAT_PREFIX.length;
+           if (!authenticate && !sender.equals(forwarding.lookup(datagram, senderNameStart, senderEnd - senderNameStart))) {
+               forwarding.spoofed.incrementAndGet();
+               return;
+           }
+          
+           heartbeats.add(datagram, senderNameStart, senderEnd - senderNameStart);
+           if (heartbeats.isFull()) {
+               heartbeats.apply(activeClients, System.currentTimeMillis());
+           }
+          
+           InetSocketAddress recipient = forwarding.lookup(datagram, nameStart, nameEnd - nameStart);
+           try {
+               if (recipient == null) {
+                   forwarding.unknownRecipient.incrementAndGet();
+                   sendResponse(sender, "ERROR:" + StandardCharsets.UTF_8.decode(datagram.slice(nameStart, nameEnd - nameStart))
+                           + " is not online");
+                   return;
+               }
+               transport.sendEncoded(datagram.slice(frameStart, end - frameStart), recipient);
+               forwarding.relayed.incrementAndGet();
+               forwarding.relayedBytes.addAndGet(end - frameStart);
+           } catch (IOException e) {
+               System.err.println("Error relaying to " + recipient + ": " + e.getMessage());
+           } finally {
+               forwarding.relayNanos.addAndGet(System.nanoTime() - start);
+           }
+       }
+      
+       // One clock read stamps every heartbeat received in the burst
+       @Override
+       public void endOfBurst() {
+           if (!heartbeats.isEmpty()) {
+               heartbeats.apply(activeClients, System.currentTimeMillis());
+           }
+       }
+      
+       @Override
+       public void handle(String message, InetSocketAddress sender, long receivedAt,
+                          DatagramTransport<String> transport) {
+           int colon = message.indexOf(':');
+           String command = colon < 0 ? message : message.substring(0, colon);
+           switch (command) {
+               case "HEARTBEAT":
+               case "LOGOUT":
+                   requests.submit(RequestClass.LIVENESS, receivedAt, message, sender);
+                   break;
+               case "GET_USERS":
+                   // The heartbeat part is cheap and applied right away, so it still counts
+                   // even if the list itself ends up shed
+                   int nameEnd = message.indexOf(':', colon + 1);
+                   String name = message.substring(colon + 1, nameEnd < 0 ? message.length() : nameEnd);
+                   if (!name.isEmpty()) {
+                       updateClientHeartbeat(name);
+                   }
+                   requests.submit(RequestClass.SNAPSHOT, receivedAt, message, sender);
+                   break;
+               default:
+                   requests.submit(RequestClass.REGISTRATION, receivedAt, message, sender);
+           }
+       }
+   }
+  
+   // Kinds of request, most important first
+   private enum RequestClass {
+       LIVENESS(LIVENESS_THREADS, LIVENESS_QUEUE, Long.MAX_VALUE, Thread.MAX_PRIORITY),
+       REGISTRATION(REGISTRATION_THREADS, REGISTRATION_QUEUE, Long.MAX_VALUE, Thread.NORM_PRIORITY),
+       SNAPSHOT(SNAPSHOT_THREADS, SNAPSHOT_QUEUE, SNAPSHOT_MAX_QUEUE_DELAY_MS, Thread.MIN_PRIORITY);
+      
+       private final int threads;
+       private final int queueCapacity;
+       private final long maxQueueDelay;
+       private final int threadPriority;
+       // Names the class's pool in flight recording events
+       private final String server;
+      
+       RequestClass(int threads, int queueCapacity, long maxQueueDelay, int threadPriority) {
+           this.threads = threads;
+           this.queueCapacity = queueCapacity;
+           this.maxQueueDelay = maxQueueDelay;
+           this.threadPriority = threadPriority;
+           this.server = "chat-server/" + name().toLowerCase();
+       }
+   }
+  
+   // One bounded pool per request class. Requests that find their queue full, or that
+   // waited longer than their class allows, are dropped and counted.
+   private static class ClassifiedRequests {
+       private final Map<RequestClass, ThreadPoolExecutor> pools = new EnumMap<>(RequestClass.class);
+       private final Map<RequestClass, AtomicLong> shed = new EnumMap<>(RequestClass.class);
+       private final Map<RequestClass, Long> reportedShed = new EnumMap<>(RequestClass.class);
+      
+       public ClassifiedRequests() {
+           for (RequestClass requestClass : RequestClass.values()) {
+               ThreadPoolExecutor pool = new ThreadPoolExecutor(requestClass.threads, requestClass.threads,
+                       0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(requestClass.queueCapacity), runnable -> {
+                           Thread thread = new Thread(runnable, "chat-" + requestClass.name().toLowerCase());
+                           thread.setPriority(requestClass.threadPriority);
+                           thread.setDaemon(true);
+                           return thread;
+                       });
+               pools.put(requestClass, pool);
+               shed.put(requestClass, new AtomicLong());
+               reportedShed.put(requestClass, 0L);
+           }
+       }
+      
+       // Queues processPacket for the request. Slow runs show up in a flight recording
+       // as chat-server/<class> handle events, with the time spent queued.
+       public void submit(RequestClass requestClass, long receivedAt, String message, InetSocketAddress sender) {
+           long queuedAt = System.nanoTime();
+           try {
+               pools.get(requestClass).execute(() -> {
+                   if (System.currentTimeMillis() - receivedAt > requestClass.maxQueueDelay) {
+                       shed.get(requestClass).incrementAndGet();
+                       return;
+                   }
+                   RequestEvents.Handle event = new RequestEvents.Handle();
+                   event.begin();
+                   long queueWait = System.nanoTime() - queuedAt;
+                   processPacket(message, sender);
+                   if (event.finish()) {
+                       event.record(requestClass.server, RequestEvents.command(message), message.length(), queueWait);
+                   }
+               });
+           } catch (RejectedExecutionException e) {
+               shed.get(requestClass).incrementAndGet();
+           }
+       }
+      
+       // Logs queue depths and what was shed since the last report, if anything was
+       public synchronized void report() {
+           StringBuilder line = new StringBuilder();
+           for (RequestClass requestClass : RequestClass.values()) {
+               long total = shed.get(requestClass).get();
+               long recent = total - reportedShed.put(requestClass, total);
+               if (recent > 0) {
+                   line.append(" ").append(requestClass).append(": shed ").append(recent)
+                       .append(", queued ").append(pools.get(requestClass).getQueue().size()).append(";");
+               }
+           }
+           if (line.length() > 0) {
+               System.out.println("Overload:" + line);
+           }
+       }
+   }
+  
+   // Matches a command prefix straight off the receive buffer, without decoding it
+   private static boolean startsWith(ByteBuffer datagram, byte[] prefix) {
+       if (datagram.remaining() <= prefix.length) {
+           return false;
+       }
+       for (int i = 0; i < prefix.length; i++) {
+           if (datagram.get(datagram.position() + i) != prefix[i]) {
+               return false;
+           }
+       }
+       return true;
+   }
+  
+   // Absolute index of the first occurrence of b at or after from, or -1
+   private static int indexOf(ByteBuffer datagram, byte b, int from) {
+       for (int i = from; i < datagram.limit(); i++) {
+           if (datagram.get(i) == b) {
+               return i;
+           }
        }
+       return -1;
    }
   
    private static void startClientTimeoutChecker() {
@@ -53,24 +391,36 @@ public class ChatServer {
                List<String> clientsToRemove = new ArrayList<>();
               
                // Check for clients that haven't sent a heartbeat recently
-               for (Map.Entry<String, ClientInfo> entry : activeClients.entrySet()) {
-                   if (currentTime - entry.getValue().getLastHeartbeat() > CLIENT_TIMEOUT) {
-                       clientsToRemove.add(entry.getKey());
+               ClientCursor clients = activeClients.snapshot();
+               while (clients.next()) {
+                   if (currentTime - clients.getLastHeartbeat() > CLIENT_TIMEOUT) {
+                       clientsToRemove.add(clients.getUsername());
                    }
                }
               
                // Remove inactive clients
                for (String username : clientsToRemove) {
                    System.out.println("Removing inactive client: " + username);
-                   activeClients.remove(username);
+                   if (activeClients.remove(username)) {
+                       forwarding.remove(username);
+                       sessionKeys.remove(username);
+                       registryVersion.incrementAndGet();
+                   }
+               }
+              
+               requests.report();
+               forwarding.report();
+               sessionKeys.report();
+               if (userListCompression.payloads() != reportedUserLists) {
+                   reportedUserLists = userListCompression.payloads();
+                   System.out.println("User lists: " + userListCompression.report());
                }
            }
        }, 5000, 5000); // Check every 5 seconds
    }
   
-   private static void processPacket(DatagramSocket socket, DatagramPacket packet) {
+   private static void processPacket(String message, InetSocketAddress sender) {
        try {
-           String message = new String(packet.getData(), 0, packet.getLength());
            String[] parts = message.split(":", 2);
           
            if (parts.length < 2) {
@@ -83,12 +433,14 @@ public class ChatServer {
           
            switch (command) {
                case "REGISTER":
-                   handleRegistration(socket, packet, data);
+                   handleRegistration(sender, data);
                    break;
                case "GET_USERS":
-                   sendUserList(socket, packet);
+                   // A name in the request was already counted as a heartbeat on admission
+                   sendUserList(sender, compressUserLists && data.endsWith(":" + PayloadCompression.DEFLATE));
                    break;
                case "HEARTBEAT":
+                   // Normally handled by the batched path in the receive loop
                    updateClientHeartbeat(data);
                    break;
                case "LOGOUT":
@@ -102,65 +454,343 @@ public class ChatServer {
        }
    }
   
-   private static void handleRegistration(DatagramSocket socket, DatagramPacket packet, String data) throws IOException {
+   private static void handleRegistration(InetSocketAddress sender, String data) throws IOException {
        String[] userParts = data.split(",");
        if (userParts.length != 2) {
-           sendResponse(socket, packet, "ERROR:Invalid registration format");
+           sendResponse(sender, "ERROR:Invalid registration format");
            return;
        }
       
        String username = userParts[0];
        int clientPort = Integer.parseInt(userParts[1]);
       
-       if (activeClients.containsKey(username)) {
-           sendResponse(socket, packet, "ERROR:Username already taken");
+       // Store client information
+       try {
+           if (!activeClients.register(username, sender.getAddress(), clientPort, System.currentTimeMillis())) {
+               sendResponse(sender, "ERROR:Username already taken");
+               return;
+           }
+           // Relayed chat goes back to where the registration came from, which is the
+           // address a NAT has mapped for this client, not the port it claims
+           forwarding.put(username, sender);
+           registryVersion.incrementAndGet();
+       } catch (IllegalArgumentException e) {
+           sendResponse(sender, "ERROR:" + e.getMessage());
            return;
        }
       
-       // Store client information
-       ClientInfo clientInfo = new ClientInfo(username, packet.getAddress(), clientPort);
-       activeClients.put(username, clientInfo);
-      
        System.out.println("Registered new client: " + username + " at " +
-                          packet.getAddress().getHostAddress() + ":" + clientPort);
+                          sender.getAddress().getHostAddress() + ":" + clientPort);
       
-       sendResponse(socket, packet, "SUCCESS:Registration successful");
+       // The key goes out in the clear, so it keeps off-path senders from speaking for
+       // the client, not anyone who can read the registration reply
+       String key = "";
+       if (authenticate) {
+           SecretKeySpec sessionKey = DatagramAuth.newKey();
+           sessionKeys.put(username, sessionKey);
+           key = ";key=" + DatagramAuth.encodeKey(sessionKey);
+       }
+       String compression = compressUserLists ? ";compress=" + PayloadCompression.DEFLATE : "";
+       sendResponse(sender, "SUCCESS:Registration successful" + heartbeatParameters() + key + compression);
    }
   
-   private static void sendUserList(DatagramSocket socket, DatagramPacket packet) throws IOException {
-       StringBuilder userList = new StringBuilder("USERS:");
-      
-       for (Map.Entry<String, ClientInfo> entry : activeClients.entrySet()) {
-           ClientInfo client = entry.getValue();
-           userList.append(client.getUsername()).append(",")
-                  .append(client.getAddress().getHostAddress()).append(",")
-                  .append(client.getPort()).append(";");
+   // Slot count given with --off-heap=, or -1 if it is not a number the registry can hold
+   private static int parseOffHeapCapacity(String value) {
+       try {
+           int capacity = Integer.parseInt(value.trim());
+           return capacity > 0 && capacity <= OffHeapClientRegistry.MAX_CAPACITY ? capacity : -1;
+       } catch (NumberFormatException e) {
+           return -1;
+       }
+   }
+  
+   // Heartbeat settings appended to the registration response as ";interval=<ms>;jitter=<ms>".
+   // Clients that predate them only look at the SUCCESS prefix.
+   private static String heartbeatParameters() {
+       double load = Math.min(1.0, (double) activeClients.size() / HEAVY_LOAD_CLIENTS);
+       long interval = MIN_HEARTBEAT_INTERVAL + (long) ((MAX_HEARTBEAT_INTERVAL - MIN_HEARTBEAT_INTERVAL) * load);
+       return ";interval=" + interval + ";jitter=" + interval / HEARTBEAT_JITTER_DIVISOR;
+   }
+  
+   // Every request shares one read-only buffer; only its position and limit are per send.
+   // Lists too small to gain from compression go out plain even when it was asked for.
+   private static void sendUserList(InetSocketAddress sender, boolean compressed) throws IOException {
+       UserListPayload payload = userListPayload();
+       ByteBuffer datagram = compressed && payload.compressed != null ? payload.compressed : payload.datagram;
+       transport.sendEncoded(datagram.duplicate(), sender);
+   }
+  
+   private static UserListPayload userListPayload() {
+       UserListPayload cached = cachedUserList;
+       if (cached != null && cached.version == registryVersion.get()) {
+           return cached;
        }
       
-       sendResponse(socket, packet, userList.toString());
+       // One request rebuilds after a change; any others arriving meanwhile wait for it.
+       // The version is read before the walk, so a change during it forces another rebuild.
+       synchronized (userListLock) {
+           long version = registryVersion.get();
+           cached = cachedUserList;
+           if (cached != null && cached.version == version) {
+               return cached;
+           }
+          
+           StringBuilder userList = new StringBuilder("USERS:");
+           ClientCursor client = activeClients.snapshot();
+           while (client.next()) {
+               userList.append(client.getUsername()).append(",")
+                      .append(client.getAddress().getHostAddress()).append(",")
+                      .append(client.getPort()).append(";");
+           }
+          
+           ByteBuffer datagram = transport.encode(userList.toString());
+           ByteBuffer payload = ByteBuffer.allocateDirect(datagram.remaining()).put(datagram).flip().asReadOnlyBuffer();
+           cachedUserList = new UserListPayload(version, payload, compressUserLists ? compressUserList(payload) : null);
+           return cachedUserList;
+       }
    }
   
-   private static void updateClientHeartbeat(String username) {
-       if (activeClients.containsKey(username)) {
-           activeClients.get(username).updateHeartbeat();
+   // "ZUSERS:" and the deflated list after the USERS: prefix, or null if it does not shrink
+   private static ByteBuffer compressUserList(ByteBuffer payload) {
+       ByteBuffer list = payload.slice(USERS_PREFIX_LENGTH, payload.remaining() - USERS_PREFIX_LENGTH);
+       ByteBuffer deflated = userListCompression.compress(list);
+       if (deflated == null) {
+           return null;
        }
+       return ByteBuffer.allocateDirect(COMPRESSED_USERS_PREFIX.length + deflated.remaining())
+               .put(COMPRESSED_USERS_PREFIX).put(deflated).flip().asReadOnlyBuffer();
+   }
+  
+   private static void updateClientHeartbeat(String username) {
+       activeClients.heartbeat(username, System.currentTimeMillis());
    }
   
    private static void removeClient(String username) {
-       if (activeClients.containsKey(username)) {
+       if (activeClients.remove(username)) {
+           forwarding.remove(username);
+           sessionKeys.remove(username);
+           registryVersion.incrementAndGet();
            System.out.println("Client logged out: " + username);
-           activeClients.remove(username);
        }
    }
   
-   private static void sendResponse(DatagramSocket socket, DatagramPacket requestPacket,
-                                    String responseMessage) throws IOException {
-       byte[] responseData = responseMessage.getBytes();
-       DatagramPacket responsePacket = new DatagramPacket(
-           responseData, responseData.length,
-           requestPacket.getAddress(), requestPacket.getPort()
-       );
-       socket.send(responsePacket);
+   private static void sendResponse(InetSocketAddress sender, String responseMessage) throws IOException {
+       transport.send(responseMessage, sender);
+   }
+  
+   // Username to relay endpoint, kept in step with the registry. Keys are the UTF-8 name
+   // bytes, so a relay frame is looked up with a view of the receive buffer and the name
+   // is never decoded. Counters are reported with the overload figures.
+   private static class ForwardingTable {
+       private final Map<ByteBuffer, InetSocketAddress> endpoints = new ConcurrentHashMap<>();
+       private final AtomicLong relayed = new AtomicLong();
+       private final AtomicLong relayedBytes = new AtomicLong();
+       private final AtomicLong unknownRecipient = new AtomicLong();
+       private final AtomicLong malformed = new AtomicLong();
+       // Frames whose sender name does not match the endpoint they came from
+       private final AtomicLong spoofed = new AtomicLong();
+       private final AtomicLong relayNanos = new AtomicLong();
+       private long reportedRelayed;
+      
+       public void put(String username, InetSocketAddress endpoint) {
+           endpoints.put(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)), endpoint);
+       }
+      
+       public void remove(String username) {
+           endpoints.remove(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)));
+       }
+      
+       // ByteBuffer equality compares the remaining bytes, so the slice matches the key
+       public InetSocketAddress lookup(ByteBuffer datagram, int offset, int length) {
+           return endpoints.get(datagram.slice(offset, length));
+       }
+      
+       // Logs relay volume and cost since the start, if anything was relayed or refused since the last report
+       public synchronized void report() {
+           long total = relayed.get();
+           if (total + spoofed.get() == reportedRelayed) {
+               return;
+           }
+           reportedRelayed = total + spoofed.get();
+           long handled = total + unknownRecipient.get();
+           System.out.printf("Relay: %d forwarded (%d bytes), %d to unknown users, %d malformed, %d from the wrong endpoint, %.2f us per frame%n",
+                   total, relayedBytes.get(), unknownRecipient.get(), malformed.get(), spoofed.get(),
+                   relayNanos.get() / 1000.0 / Math.max(1, handled));
+       }
+   }
+  
+   // Session keys by username for --auth, keyed by UTF-8 name bytes like the forwarding
+   // table. Only the receive thread verifies, so the replay windows need no locking.
+   private static class SessionKeys {
+       // How far behind the newest sequence number a datagram may arrive and still count
+       private static final int REPLAY_WINDOW = 64;
+      
+       private final Map<ByteBuffer, Session> sessions = new ConcurrentHashMap<>();
+       private final AtomicLong unknownSender = new AtomicLong();
+       private final AtomicLong badTag = new AtomicLong();
+       private final AtomicLong replayed = new AtomicLong();
+       private long reportedRejections;
+      
+       public void put(String username, SecretKeySpec key) {
+           sessions.put(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)), new Session(key));
+       }
+      
+       public void remove(String username) {
+           sessions.remove(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)));
+       }
+      
+       // Checks the tag against the key of the user the datagram speaks for and, if it
+       // holds, cuts the sequence number and tag off by lowering the limit
+       public boolean verify(ByteBuffer datagram) {
+           int payloadEnd = datagram.limit() - DatagramAuth.OVERHEAD;
+           int nameStart = claimedNameStart(datagram, payloadEnd);
+           int nameEnd = nameStart < 0 ? -1 : indexOf(datagram.slice(0, payloadEnd), (byte) ':', nameStart);
+           if (nameEnd < 0) {
+               nameEnd = payloadEnd;
+           }
+           Session session = nameStart < 0 ? null : sessions.get(datagram.slice(nameStart, nameEnd - nameStart));
+           if (session == null) {
+               unknownSender.incrementAndGet();
+               return false;
+           }
+           long sequence = DatagramAuth.verify(session.key, datagram);
+           if (sequence < 0) {
+               badTag.incrementAndGet();
+               return false;
+           }
+           if (!session.accept(sequence)) {
+               replayed.incrementAndGet();
+               return false;
+           }
+           datagram.limit(payloadEnd);
+           return true;
+       }
+      
+       // Where the sending user's name starts: after the command, or for a relay, after
+       // the CHAT: inside it. Returns -1 if the datagram has no room for a name.
+       private static int claimedNameStart(ByteBuffer datagram, int payloadEnd) {
+           if (payloadEnd <= datagram.position()) {
+               return -1;
+           }
+           ByteBuffer payload = datagram.slice(0, payloadEnd);
+           int colon = indexOf(payload, (byte) ':', datagram.position());
+           if (colon < 0) {
+               return -1;
+           }
+           if (!startsWith(datagram, RELAY_PREFIX)) {
+               return colon + 1;
+           }
+           int frameEnd = indexOf(payload, (byte) ':', colon + 1);
+           return frameEnd < 0 ? -1 : frameEnd + 1 + CHAT_PREFIX.length;
+       }
+      
+       // Logs rejected datagrams since the last report, if there were any
+       public synchronized void report() {
+           long total = unknownSender.get() + badTag.get() + replayed.get();
+           if (total == reportedRejections) {
+               return;
+           }
+           reportedRejections = total;
+           System.out.println("Auth: rejected " + unknownSender.get() + " unsigned or from unknown users, " + badTag.get()
+                   + " with bad tags, " + replayed.get() + " replayed");
+       }
+      
+       private static class Session {
+           private final SecretKeySpec key;
+           // Newest sequence number accepted, and a bit for each of the ones before it
+           private long highest;
+           private long window;
+          
+           Session(SecretKeySpec key) {
+               this.key = key;
+           }
+          
+           // Accepts each sequence number once, tolerating some reordering
+           boolean accept(long sequence) {
+               if (sequence > highest) {
+                   long shift = sequence - highest;
+                   window = shift >= REPLAY_WINDOW ? 1 : (window << shift) | 1;
+                   highest = sequence;
+                   return true;
+               }
+               long age = highest - sequence;
+               if (age >= REPLAY_WINDOW || (window & (1L << age)) != 0) {
+                   return false;
+               }
+               window |= 1L << age;
+               return true;
+           }
+       }
+   }
+  
+   // Measures what --auth adds per datagram: the plain path's prefix match and name
+   // lookup against tag verification on a direct buffer, as the receive loop sees it
+   private static void benchmarkAuth() {
+       int users = 1000;
+       int iterations = 200000;
+       SecretKeySpec[] keys = new SecretKeySpec[users];
+       for (int i = 0; i < users; i++) {
+           keys[i] = DatagramAuth.newKey();
+           sessionKeys.put("user" + i, keys[i]);
+           forwarding.put("user" + i, new InetSocketAddress(InetAddress.getLoopbackAddress(), 10000 + i));
+       }
+      
+       long sink = 0;
+       long sequence = 0;
+       for (int round = 0; round < 5; round++) {
+           // Every round needs fresh sequence numbers, so the datagrams are signed per round
+           ByteBuffer datagrams = ByteBuffer.allocateDirect(iterations * 64);
+           int[] ends = new int[iterations];
+           long signStart = System.nanoTime();
+           sequence++;
+           for (int i = 0; i < iterations; i++) {
+               byte[] payload = ("HEARTBEAT:user" + (i % users)).getBytes(StandardCharsets.UTF_8);
+               datagrams.put(DatagramAuth.sign(keys[i % users], sequence + i / users, payload));
+               ends[i] = datagrams.position();
+           }
+           long signTime = System.nanoTime() - signStart;
+           sequence += iterations / users;
+          
+           ByteBuffer view = datagrams.duplicate();
+           long plainStart = System.nanoTime();
+           for (int i = 0, start = 0; i < iterations; start = ends[i++]) {
+               view.limit(ends[i] - DatagramAuth.OVERHEAD).position(start);
+               if (startsWith(view, HEARTBEAT_PREFIX)) {
+                   sink += forwarding.lookup(view, start + HEARTBEAT_PREFIX.length, view.limit() - start - HEARTBEAT_PREFIX.length).getPort();
+               }
+           }
+           long plainTime = System.nanoTime() - plainStart;
+          
+           long verifyStart = System.nanoTime();
+           for (int i = 0, start = 0; i < iterations; start = ends[i++]) {
+               view.limit(ends[i]).position(start);
+               if (sessionKeys.verify(view)) {
+                   sink += view.limit();
+               }
+           }
+           long verifyTime = System.nanoTime() - verifyStart;
+          
+           System.out.println("Round " + (round + 1) + ": plain " + (plainTime / iterations) + " ns/datagram, "
+                   + "verified " + (verifyTime / iterations) + " ns/datagram (+"
+                   + ((verifyTime - plainTime) / iterations) + " ns, +" + DatagramAuth.OVERHEAD + " bytes), "
+                   + "client signing " + (signTime / iterations) + " ns/datagram");
+       }
+       System.out.println("(checksum " + sink + ", rejected " + (sessionKeys.unknownSender.get()
+               + sessionKeys.badTag.get() + sessionKeys.replayed.get()) + ")");
+   }
+  
+   // A serialized USERS: reply and the registry version it reflects, with its ZUSERS:
+   // form when compression is on and pays off
+   private static class UserListPayload {
+       private final long version;
+       private final ByteBuffer datagram;
+       private final ByteBuffer compressed;
+      
+       public UserListPayload(long version, ByteBuffer datagram, ByteBuffer compressed) {
+           this.version = version;
+           this.datagram = datagram;
+           this.compressed = compressed;
+       }
    }
   
    // Class to store client information
@@ -168,7 +798,7 @@ public class ChatServer {
        private final String username;
        private final InetAddress address;
        private final int port;
-       private long lastHeartbeat;
+       private volatile long lastHeartbeat;
       
        public ClientInfo(String username, InetAddress address, int port) {
            this.username = username;
@@ -193,8 +823,439 @@ public class ChatServer {
            return lastHeartbeat;
        }
       
-       public void updateHeartbeat() {
-           lastHeartbeat = System.currentTimeMillis();
+       public void updateHeartbeat(long now) {
+           lastHeartbeat = now;
+       }
+   }
+  
+   // Usernames from the heartbeats of one receive cycle, copied back to back into one array
+   private static class HeartbeatBatch {
+       private final byte[] names;
+       // Moved over each name in turn to look it up, so applying a batch allocates nothing
+       private final ByteBuffer name;
+       private final int[] offsets;
+       private final int[] lengths;
+       private int count;
+       private int used;
+      
+       public HeartbeatBatch(int capacity) {
+           this.names = new byte[capacity * 1024];
+           this.name = ByteBuffer.wrap(names);
+           this.offsets = new int[capacity];
+           this.lengths = new int[capacity];
+       }
+      
+       // Copies the username at the given absolute offset in the datagram
+       public void add(ByteBuffer datagram, int offset, int length) {
+           datagram.get(offset, names, used, length);
+           offsets[count] = used;
+           lengths[count] = length;
+           used += length;
+           count++;
+       }
+      
+       public boolean isFull() {
+           return count == offsets.length;
+       }
+      
+       public boolean isEmpty() {
+           return count == 0;
+       }
+      
+       // Applies every heartbeat in one pass with a single timestamp, then resets the batch
+       public void apply(ClientRegistry registry, long now) {
+           for (int i = 0; i < count; i++) {
+               name.limit(offsets[i] + lengths[i]).position(offsets[i]);
+               registry.heartbeat(name, now);
+           }
+           count = 0;
+           used = 0;
+       }
+   }
+  
+   // Storage for registered clients. The heap registry is the default; the off-heap one
+   // keeps every client in a direct buffer so a large registry adds nothing to GC work.
+   private interface ClientRegistry {
+       // Returns false if the username is already taken; throws IllegalArgumentException
+       // if the client cannot be stored at all
+       boolean register(String username, InetAddress address, int port, long now);
+       
+       // Returns false if the username is not registered
+       boolean heartbeat(String username, long now);
+      
+       // Same as heartbeat(String, long) for a UTF-8 username that has not been decoded yet:
+       // the remaining bytes of name, which are only read during the call
+       boolean heartbeat(ByteBuffer name, long now);
+       
+       boolean remove(String username);
+       
+       int size();
+       
+       // Walks the clients registered when the call is made; changes made during the walk may or may not be seen
+       ClientCursor snapshot();
+   }
+   
+   private interface ClientCursor {
+       boolean next();
+       
+       String getUsername();
+       
+       InetAddress getAddress();
+       
+       int getPort();
+       
+       long getLastHeartbeat();
+   }
+   
+   private static class HeapClientRegistry implements ClientRegistry {
+       // Thread-safe map to store active clients
+       private final Map<String, ClientInfo> clients = new ConcurrentHashMap<>();
+       // The same clients keyed by UTF-8 name bytes, as in the forwarding table, so a
+       // heartbeat is found without decoding the name. Registration and removal keep the
+       // two maps in step under the lock; lookups do not take it.
+       private final Map<ByteBuffer, ClientInfo> byName = new ConcurrentHashMap<>();
+       
+       @Override
+       public synchronized boolean register(String username, InetAddress address, int port, long now) {
+           ClientInfo client = new ClientInfo(username, address, port);
+           if (clients.putIfAbsent(username, client) != null) {
+               return false;
+           }
+           byName.put(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)), client);
+           return true;
+       }
+       
+       @Override
+       public boolean heartbeat(String username, long now) {
+           ClientInfo client = clients.get(username);
+           if (client == null) {
+               return false;
+           }
+           client.updateHeartbeat(now);
+           return true;
+       }
+      
+       @Override
+       public boolean heartbeat(ByteBuffer name, long now) {
+           ClientInfo client = byName.get(name);
+           if (client == null) {
+               return false;
+           }
+           client.updateHeartbeat(now);
+           return true;
+       }
+       
+       @Override
+       public synchronized boolean remove(String username) {
+           if (clients.remove(username) == null) {
+               return false;
+           }
+           byName.remove(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)));
+           return true;
+       }
+       
+       @Override
+       public int size() {
+           return clients.size();
+       }
+       
+       @Override
+       public ClientCursor snapshot() {
+           Iterator<ClientInfo> iterator = clients.values().iterator();
+           return new ClientCursor() {
+               private ClientInfo current;
+               
+               @Override
+               public boolean next() {
+                   if (!iterator.hasNext()) {
+                       return false;
+                   }
+                   current = iterator.next();
+                   return true;
+               }
+               
+               @Override
+               public String getUsername() {
+                   return current.getUsername();
+               }
+               
+               @Override
+               public InetAddress getAddress() {
+                   return current.getAddress();
+               }
+               
+               @Override
+               public int getPort() {
+                   return current.getPort();
+               }
+               
+               @Override
+               public long getLastHeartbeat() {
+                   return current.getLastHeartbeat();
+               }
+           };
+       }
+   }
+   
+   // Open-addressing table of fixed-size slots in a direct buffer. Each slot holds the
+   // username hash and bytes, the packed IPv4/IPv6 address, the port and the last heartbeat.
+   // Registration and removal are serialized; lookups and heartbeats never take a lock.
+   private static class OffHeapClientRegistry implements ClientRegistry {
+       private static final int SLOT_SIZE = 80;
+       // Largest capacity whose power-of-two table still fits in one direct buffer
+       static final int MAX_CAPACITY = 1 << 24;
+       // Slot layout, byte offsets; the long fields stay 8-byte aligned
+       private static final int STATUS = 0;
+       private static final int PORT = 4;
+       private static final int HASH = 8;
+       private static final int HEARTBEAT = 16;
+       private static final int ADDRESS_LENGTH = 24;
+       private static final int NAME_LENGTH = 25;
+       private static final int ADDRESS = 32;
+       private static final int NAME = 48;
+       private static final int MAX_NAME_BYTES = SLOT_SIZE - NAME;
+       
+       private static final int EMPTY = 0;
+       private static final int LIVE = 1;
+       private static final int DELETED = 2;
+       
+       private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+       private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+       
+       private final int mask;
+       // Swapped for a compacted copy when deleted slots pile up
+       private volatile ByteBuffer slots;
+       // Guarded by this; volatile so size() can read them without locking
+       private volatile int live;
+       private volatile int deleted;
+       
+       public OffHeapClientRegistry(int capacity) {
+           int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+           this.mask = size - 1;
+           this.slots = ByteBuffer.allocateDirect(size * SLOT_SIZE).order(ByteOrder.nativeOrder());
+       }
+       
+       @Override
+       public synchronized boolean register(String username, InetAddress address, int port, long now) {
+           byte[] name = username.getBytes(StandardCharsets.UTF_8);
+           if (name.length > MAX_NAME_BYTES) {
+               throw new IllegalArgumentException("Username longer than " + MAX_NAME_BYTES + " bytes");
+           }
+           // Keep at least a quarter of the slots empty so failed lookups stay short
+           if ((live + 1) * 4L > (mask + 1) * 3L) {
+               throw new IllegalArgumentException("Server is full");
+           }
+           if ((live + deleted + 1) * 4L > (mask + 1) * 3L) {
+               compact();
+           }
+           
+           ByteBuffer table = slots;
+           long hash = hash(name, 0, name.length);
+           int target = -1;
+           for (int i = 0, slot = indexFor(hash); i <= mask; i++, slot = (slot + 1) & mask) {
+               int base = slot * SLOT_SIZE;
+               int status = (int) INT.getAcquire(table, base + STATUS);
+               if (status == EMPTY) {
+                   if (target < 0) {
+                       target = base;
+                   }
+                   break;
+               }
+               if (status == DELETED) {
+                   if (target < 0) {
+                       target = base;
+                   }
+               } else if (matches(table, base, hash, name, 0, name.length)) {
+                   return false;
+               }
+           }
+           
+           boolean reusesDeleted = (int) INT.getAcquire(table, target + STATUS) == DELETED;
+           byte[] ip = address.getAddress();
+           INT.set(table, target + PORT, port);
+           LONG.set(table, target + HASH, hash);
+           LONG.set(table, target + HEARTBEAT, now);
+           table.put(target + ADDRESS_LENGTH, (byte) ip.length);
+           table.put(target + NAME_LENGTH, (byte) name.length);
+           table.put(target + ADDRESS, ip);
+           table.put(target + NAME, name);
+           // Publishing the status last makes the filled-in slot visible to lock-free readers
+           INT.setRelease(table, target + STATUS, LIVE);
+           
+           if (reusesDeleted) {
+               deleted--;
+           }
+           live++;
+           return true;
+       }
+       
+       @Override
+       public boolean heartbeat(String username, long now) {
+           byte[] name = username.getBytes(StandardCharsets.UTF_8);
+           return heartbeat(name, 0, name.length, now);
+       }
+      
+       @Override
+       public boolean heartbeat(ByteBuffer name, long now) {
+           if (!name.hasArray()) {
+               byte[] copy = new byte[name.remaining()];
+               name.duplicate().get(copy);
+               return heartbeat(copy, 0, copy.length, now);
+           }
+           return heartbeat(name.array(), name.arrayOffset() + name.position(), name.remaining(), now);
+       }
+      
+       private boolean heartbeat(byte[] name, int offset, int length, long now) {
+           ByteBuffer table = slots;
+           int base = find(table, name, offset, length);
+           if (base < 0) {
+               return false;
+           }
+           LONG.setVolatile(table, base + HEARTBEAT, now);
+           return true;
+       }
+       
+       @Override
+       public synchronized boolean remove(String username) {
+           byte[] name = username.getBytes(StandardCharsets.UTF_8);
+           ByteBuffer table = slots;
+           int base = find(table, name, 0, name.length);
+           if (base < 0) {
+               return false;
+           }
+           INT.setRelease(table, base + STATUS, DELETED);
+           live--;
+           deleted++;
+           return true;
+       }
+       
+       @Override
+       public int size() {
+           return live;
+       }
+       
+       @Override
+       public ClientCursor snapshot() {
+           ByteBuffer table = slots;
+           return new ClientCursor() {
+               private final byte[] name = new byte[MAX_NAME_BYTES];
+               private final byte[] ip = new byte[16];
+               private int slot = -1;
+               private int nameLength;
+               private int ipLength;
+               private int port;
+               private long lastHeartbeat;
+               
+               @Override
+               public boolean next() {
+                   while (++slot <= mask) {
+                       int base = slot * SLOT_SIZE;
+                       if ((int) INT.getAcquire(table, base + STATUS) != LIVE) {
+                           continue;
+                       }
+                       long hash = (long) LONG.get(table, base + HASH);
+                       nameLength = table.get(base + NAME_LENGTH);
+                       ipLength = table.get(base + ADDRESS_LENGTH);
+                       table.get(base + NAME, name, 0, nameLength);
+                       table.get(base + ADDRESS, ip, 0, ipLength);
+                       port = (int) INT.get(table, base + PORT);
+                       lastHeartbeat = (long) LONG.getVolatile(table, base + HEARTBEAT);
+                       
+                       // Skip a slot that was removed or reused while it was being copied
+                       if ((int) INT.getAcquire(table, base + STATUS) == LIVE
+                               && (long) LONG.get(table, base + HASH) == hash) {
+                           return true;
+                       }
+                   }
+                   return false;
+               }
+               
+               @Override
+               public String getUsername() {
+                   return new String(name, 0, nameLength, StandardCharsets.UTF_8);
+               }
+               
+               @Override
+               public InetAddress getAddress() {
+                   try {
+                       return InetAddress.getByAddress(Arrays.copyOf(ip, ipLength));
+                   } catch (UnknownHostException e) {
+                       throw new IllegalStateException("Corrupt address in registry slot " + slot, e);
+                   }
+               }
+               
+               @Override
+               public int getPort() {
+                   return port;
+               }
+               
+               @Override
+               public long getLastHeartbeat() {
+                   return lastHeartbeat;
+               }
+           };
+       }
+       
+       // Returns the byte offset of the live slot holding this username, or -1
+       private int find(ByteBuffer table, byte[] name, int offset, int length) {
+           long hash = hash(name, offset, length);
+           for (int i = 0, slot = indexFor(hash); i <= mask; i++, slot = (slot + 1) & mask) {
+               int base = slot * SLOT_SIZE;
+               int status = (int) INT.getAcquire(table, base + STATUS);
+               if (status == EMPTY) {
+                   return -1;
+               }
+               if (status == LIVE && matches(table, base, hash, name, offset, length)) {
+                   return base;
+               }
+           }
+           return -1;
+       }
+       
+       // Rehashes the live slots into a fresh buffer so deleted slots stop lengthening probes.
+       // A heartbeat racing with the swap can land in the old buffer and be lost, which the
+       // client timeout comfortably absorbs.
+       private void compact() {
+           ByteBuffer old = slots;
+           ByteBuffer table = ByteBuffer.allocateDirect(old.capacity()).order(ByteOrder.nativeOrder());
+           for (int base = 0; base < old.capacity(); base += SLOT_SIZE) {
+               if ((int) INT.getAcquire(old, base + STATUS) != LIVE) {
+                   continue;
+               }
+               int slot = indexFor((long) LONG.get(old, base + HASH));
+               while ((int) INT.get(table, slot * SLOT_SIZE + STATUS) != EMPTY) {
+                   slot = (slot + 1) & mask;
+               }
+               table.put(slot * SLOT_SIZE, old, base, SLOT_SIZE);
+           }
+           slots = table;
+           deleted = 0;
+       }
+       
+       private static boolean matches(ByteBuffer table, int base, long hash, byte[] name, int offset, int length) {
+           if ((long) LONG.get(table, base + HASH) != hash || table.get(base + NAME_LENGTH) != length) {
+               return false;
+           }
+           for (int i = 0; i < length; i++) {
+               if (table.get(base + NAME + i) != name[offset + i]) {
+                   return false;
+               }
+           }
+           return true;
+       }
+       
+       private int indexFor(long hash) {
+           return (int) (hash ^ (hash >>> 32)) & mask;
+       }
+       
+       // 64-bit FNV-1a over the UTF-8 username bytes
+       private static long hash(byte[] name, int offset, int length) {
+           long hash = 0xcbf29ce484222325L;
+           for (int i = offset; i < offset + length; i++) {
+               hash ^= name[i] & 0xFF;
+               hash *= 0x100000001b3L;
+           }
+           return hash;
        }
    }
 }
@@ -1,13 +1,33 @@
+import com.mycompany.transport.EndpointCache;
+import com.mycompany.transport.Multicast;
+import com.mycompany.transport.TimeSubscriber;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class UDPClient {
     private static final int BUFFER_SIZE = 1024;
     private static final int DEFAULT_TIMEOUT = 5000; // 5 seconds timeout
+    // Latency benchmark: requests are spread over this many sockets at one per pace
+    // interval, so no single source trips the server's per-source rate limit
+    private static final int LATENCY_SAMPLES = 10000;
+    private static final int LATENCY_WARMUP = 1000;
+    private static final int LATENCY_SOCKETS = 64;
+    private static final long LATENCY_PACE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // A request with no matching reply within this time counts as lost
+    private static final long LATENCY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Subscription mode: interval asked for unless given, and pushes shown before leaving
+    private static final long SUBSCRIBE_INTERVAL_MS = 1000;
+    private static final int SUBSCRIBE_UPDATES = 20;
+    // Multicast mode: announcements shown before leaving
+    private static final int MULTICAST_ANNOUNCEMENTS = 10;
     
     // List of time servers to try in order
     private static List<ServerInfo> serverList = new ArrayList<>();
@@ -20,6 +40,53 @@ public class UDPClient {
         // Initialize server list
         initializeServerList();
         
+        // Pass --server=<host>:<port> to try another server first, e.g. an ImpairmentProxy
+        for (String arg : args) {
+            if (arg.startsWith("--server=")) {
+                String server = arg.substring("--server=".length());
+                int colon = server.lastIndexOf(':');
+                serverList.add(0, new ServerInfo(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1))));
+            }
+        }
+        
+        // Pass --bench-latency or --bench-latency=<samples> to measure reply latency instead
+        for (String arg : args) {
+            if (arg.startsWith("--bench-latency")) {
+                int samples = arg.startsWith("--bench-latency=")
+                        ? Integer.parseInt(arg.substring("--bench-latency=".length())) : LATENCY_SAMPLES;
+                benchmarkLatency(serverList.get(0), samples);
+                return;
+            }
+            // Pass --multicast=<group>:<port>, and optionally --multicast-if=<interface>, to
+            // listen to the server's announcements instead
+            if (arg.startsWith("--multicast=")) {
+                String interfaceName = null;
+                for (String other : args) {
+                    if (other.startsWith("--multicast-if=")) {
+                        interfaceName = other.substring("--multicast-if=".length());
+                    }
+                }
+                try {
+                    InetSocketAddress group = Multicast.parseGroup(arg.substring("--multicast=".length()));
+                    listenForAnnouncements(serverList.get(0), group, interfaceName, MULTICAST_ANNOUNCEMENTS);
+                } catch (IOException e) {
+                    System.err.println("Client error: " + e.getMessage());
+                }
+                return;
+            }
+            // Pass --subscribe or --subscribe=<interval ms> to have the time pushed instead
+            if (arg.startsWith("--subscribe")) {
+                long interval = arg.startsWith("--subscribe=")
+                        ? Long.parseLong(arg.substring("--subscribe=".length())) : SUBSCRIBE_INTERVAL_MS;
+                for (ServerInfo server : serverList) {
+                    if (subscribe(server, interval, SUBSCRIBE_UPDATES)) {
+                        break;
+                    }
+                }
+                return;
+            }
+        }
+        
         // Try different approaches and measure performance
         System.out.println("\n----- Testing Sleep Approach -----");
         long sleepStart = System.currentTimeMillis();
@@ -50,6 +117,108 @@ public class UDPClient {
         }
     }
     
+    // Subscribes to pushed timestamps instead of sending a request for each one; see
+    // TimeSubscriber for the protocol
+    private static boolean subscribe(ServerInfo server, long intervalMillis, int updates) {
+        try {
+            return TimeSubscriber.subscribe(EndpointCache.shared().resolve(server.getHost(), server.getPort()),
+                    intervalMillis, updates, DEFAULT_TIMEOUT);
+        } catch (UnknownHostException e) {
+            System.err.println("Subscription error: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    // Listens to the server's multicast time announcements instead of asking for the time;
+    // see Multicast.listen for how the clock offset is estimated
+    private static boolean listenForAnnouncements(ServerInfo server, InetSocketAddress group,
+            String interfaceName, int announcements) {
+        try {
+            return Multicast.listen(EndpointCache.shared().resolve(server.getHost(), server.getPort()),
+                    port -> "TIME_REQUEST".getBytes(), group, interfaceName, announcements, DEFAULT_TIMEOUT);
+        } catch (UnknownHostException e) {
+            System.err.println("Multicast error: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    // Sends paced requests to one server and reports the spread of round-trip times
+    private static void benchmarkLatency(ServerInfo server, int samples) {
+        DatagramSocket[] sockets = new DatagramSocket[LATENCY_SOCKETS];
+        try {
+            // Each socket only talks to the server, so it is connected once up front
+            InetSocketAddress serverEndpoint = EndpointCache.shared().resolve(server.getHost(), server.getPort());
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = new DatagramSocket();
+                sockets[i].setSoTimeout((int) TimeUnit.NANOSECONDS.toMillis(LATENCY_TIMEOUT_NANOS));
+                sockets[i].connect(serverEndpoint);
+            }
+            
+            byte[] receiveBuffer = new byte[BUFFER_SIZE];
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            long[] latencies = new long[samples];
+            int received = 0;
+            int lost = 0;
+            int stale = 0;
+            
+            System.out.println("Measuring reply latency from " + server + " over " + samples + " requests...");
+            for (int i = 0; i < LATENCY_WARMUP + samples; i++) {
+                DatagramSocket socket = sockets[i % sockets.length];
+                // Requests are numbered and the server echoes the number, so a reply that
+                // missed its timeout and is still queued on this socket is not taken for
+                // this request's
+                byte[] sendData = ("TIME_REQUEST:" + i).getBytes();
+                String expected = ";seq=" + i;
+                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length);
+                long start = System.nanoTime();
+                socket.send(sendPacket);
+                try {
+                    while (true) {
+                        receivePacket.setLength(receiveBuffer.length);
+                        socket.receive(receivePacket);
+                        long elapsed = System.nanoTime() - start;
+                        if (new String(receiveBuffer, 0, receivePacket.getLength()).endsWith(expected)) {
+                            // The first requests only warm up both ends
+                            if (i >= LATENCY_WARMUP) {
+                                latencies[received++] = elapsed;
+                            }
+                            break;
+                        }
+                        stale++;
+                        if (elapsed >= LATENCY_TIMEOUT_NANOS) {
+                            throw new SocketTimeoutException();
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    lost++;
+                }
+                LockSupport.parkNanos(start + LATENCY_PACE_NANOS - System.nanoTime());
+            }
+            
+            Arrays.sort(latencies, 0, received);
+            System.out.println("Replies: " + received + ", lost: " + lost + ", late replies discarded: " + stale);
+            if (received > 0) {
+                System.out.printf("p50: %.1f us, p99: %.1f us, p99.9: %.1f us, max: %.1f us%n",
+                        percentile(latencies, received, 0.50), percentile(latencies, received, 0.99),
+                        percentile(latencies, received, 0.999), latencies[received - 1] / 1000.0);
+            }
+        } catch (IOException e) {
+            System.err.println("Client error: " + e.getMessage());
+        } finally {
+            for (DatagramSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+    
+    // Nearest-rank percentile of the first count sorted values, in microseconds
+    private static double percentile(long[] sorted, int count, double fraction) {
+        int rank = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, rank)] / 1000.0;
+    }
+    
     private static void initializeServerList() {
         // Add servers to the list (hostname/IP and port)
         serverList.add(new ServerInfo("localhost", 9876));
@@ -191,12 +360,9 @@ public class UDPClient {
                 String message = "TIME_REQUEST";
                 byte[] sendData = message.getBytes();
                 
-                // Get server address
-                InetAddress serverAddress = InetAddress.getByName(server.getHost());
-                
-                // Create packet and send to server
+                // Create packet and send to server, resolved at most once per cache TTL
                 DatagramPacket sendPacket = new DatagramPacket(
-                        sendData, sendData.length, serverAddress, server.getPort());
+                        sendData, sendData.length, EndpointCache.shared().resolve(server.getHost(), server.getPort()));
                 
                 socket.send(sendPacket);
                 System.out.println("Sent request to server: " + server);
@@ -1,78 +1,196 @@
+import com.mycompany.transport.Codec;
+import com.mycompany.transport.DatagramTransport;
+import com.mycompany.transport.Engine;
+import com.mycompany.transport.Handler;
+import com.mycompany.transport.Multicast;
+import com.mycompany.transport.MulticastPublisher;
+import com.mycompany.transport.RateLimiter;
+import com.mycompany.transport.Subscriptions;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class UDPServer {
     private static final int SERVER_PORT = 9876;
-    private static final int BUFFER_SIZE = 1024;
-    private static boolean running = true;
+    private static final int THREAD_POOL_SIZE = 10;
+    // Per-source flood protection: sustained requests per second and burst size
+    private static final int RATE_LIMIT_PER_SECOND = 20;
+    private static final int RATE_LIMIT_BURST = 40;
+    private static final int RATE_LIMIT_CAPACITY = 1 << 14;
+    // Upper bound on how long a drain waits for queued requests and their replies
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+    // Time subscriptions: pushes go out on a 100 ms tick at intervals between the tick and
+    // a minute, and a subscriber that does not renew within the lease is dropped
+    private static final long SUBSCRIPTION_TICK_MS = 100;
+    private static final long MAX_SUBSCRIPTION_INTERVAL_MS = 60000;
+    private static final long SUBSCRIPTION_LEASE_MS = 30000;
+    private static final int MAX_SUBSCRIBERS = 50000;
+    // Multicast announcements: how often, and how many router hops they may cross
+    private static final long MULTICAST_INTERVAL_MS = 1000;
+    private static final int MULTICAST_TTL = 1;
+    
+    // How the socket is read and requests are run; pick with
+    // --engine=blocking|selector|virtual|busy-poll
+    private static Engine engine = Engine.BLOCKING;
+    // Busy-poll only: spin this long after the last request before parking, and park this long
+    private static long spinMicros = 10000;
+    private static long parkMicros = 50;
+    private static DatagramTransport<String> transport;
+    private static Subscriptions<String> subscriptions;
+    // Set with --multicast=<group>:<port> and optionally --multicast-if=<interface>;
+    // announcements read "TIME:<epoch ms>:<time as in a unicast reply>"
+    private static InetSocketAddress multicastGroup;
+    private static String multicastInterface;
+    private static MulticastPublisher<String> multicastPublisher;
+    // Set with --capture=<file> to record incoming requests for TraceReplay
+    private static Path capturePath;
     
     public static void main(String[] args) {
-        // Create thread pool for handling multiple clients
-        ExecutorService executor = Executors.newFixedThreadPool(10);
-        
-        try (DatagramSocket serverSocket = new DatagramSocket(SERVER_PORT)) {
-            System.out.println("UDP Time Server started on port " + SERVER_PORT);
-            
-            while (running) {
-                // Buffer to receive client data
-                byte[] receiveBuffer = new byte[BUFFER_SIZE];
-                DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-                
-                // Wait for client request
-                System.out.println("Waiting for client request...");
-                serverSocket.receive(receivePacket);
-                
-                // Submit client request to thread pool
-                executor.submit(new ClientHandler(serverSocket, receivePacket));
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = Engine.parse(arg.substring("--engine=".length()));
+            } else if (arg.startsWith("--spin-us=")) {
+                spinMicros = Long.parseLong(arg.substring("--spin-us=".length()));
+            } else if (arg.startsWith("--park-us=")) {
+                parkMicros = Long.parseLong(arg.substring("--park-us=".length()));
+            } else if (arg.startsWith("--multicast=")) {
+                try {
+                    multicastGroup = Multicast.parseGroup(arg.substring("--multicast=".length()));
+                } catch (IOException e) {
+                    System.err.println("Multicast disabled: " + e.getMessage());
+                }
+            } else if (arg.startsWith("--multicast-if=")) {
+                multicastInterface = arg.substring("--multicast-if=".length());
+            } else if (arg.startsWith("--capture=")) {
+                capturePath = Paths.get(arg.substring("--capture=".length()));
             }
+        }
+        
+        try {
+            start();
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
-        } finally {
-            executor.shutdown();
+            return;
+        }
+        
+        // Drain in-flight work when the process is asked to stop, e.g. by a deploy script
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(DRAIN_TIMEOUT_MS)));
+        
+        try {
+            transport.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Binds the port and starts receiving requests
+    public static synchronized void start() throws IOException {
+        if (transport != null && transport.isRunning()) {
+            return;
+        }
+        
+        // Requests are handled on a pool of 10 threads, or inline by the busy-poll engine
+        transport = new DatagramTransport<>("udp-time", engine, Codec.text(Charset.defaultCharset()), new TimeHandler())
+                .workers(THREAD_POOL_SIZE)
+                .busyPoll(TimeUnit.MICROSECONDS.toNanos(spinMicros), TimeUnit.MICROSECONDS.toNanos(parkMicros))
+                .reusePort(true)
+                .capture(capturePath);
+        transport.start(SERVER_PORT);
+        
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+        subscriptions = new Subscriptions<>(transport, SUBSCRIPTION_TICK_MS, SUBSCRIPTION_TICK_MS,
+                MAX_SUBSCRIPTION_INTERVAL_MS, SUBSCRIPTION_LEASE_MS, MAX_SUBSCRIBERS);
+        subscriptions.start(now -> LocalDateTime.ofInstant(Instant.ofEpochMilli(now), ZoneId.systemDefault())
+                .format(formatter));
+        
+        if (multicastGroup != null) {
+            multicastPublisher = new MulticastPublisher<>(Codec.text(Charset.defaultCharset()), multicastGroup,
+                    Multicast.findInterface(multicastInterface), MULTICAST_INTERVAL_MS, MULTICAST_TTL);
+            multicastPublisher.start(now -> "TIME:" + now + ":"
+                    + LocalDateTime.ofInstant(Instant.ofEpochMilli(now), ZoneId.systemDefault()).format(formatter));
+            System.out.println("Announcing the time to " + multicastGroup + " every " + MULTICAST_INTERVAL_MS + " ms");
+        }
+        System.out.println("UDP Time Server started on port " + SERVER_PORT + " using the " + engine + " engine");
+    }
+    
+    // Stops taking new requests, lets the pool finish queued requests and send their
+    // replies, then releases the port. Returns false if the deadline passed first.
+    public static synchronized boolean drain(long timeoutMillis) {
+        if (transport == null || !transport.isRunning()) {
+            return true;
+        }
+        
+        System.out.println("Draining UDP Time Server...");
+        subscriptions.stop();
+        if (multicastPublisher != null) {
+            multicastPublisher.stop();
+        }
+        boolean drained = transport.drain(timeoutMillis);
+        System.out.println(drained ? "UDP Time Server drained" : "UDP Time Server drain timed out");
+        return drained;
+    }
+    
+    // Stops immediately, abandoning any queued requests
+    public static synchronized void stop() {
+        if (subscriptions != null) {
+            subscriptions.stop();
+        }
+        if (multicastPublisher != null) {
+            multicastPublisher.stop();
+        }
+        if (transport != null) {
+            transport.stop();
         }
     }
     
-    // Inner class to handle client requests concurrently
-    static class ClientHandler implements Runnable {
-        private final DatagramSocket socket;
-        private final DatagramPacket receivedPacket;
+    // Answers every request with the time it arrived
+    static class TimeHandler implements Handler<String> {
+        private final RateLimiter rateLimiter = new RateLimiter(RATE_LIMIT_CAPACITY, RATE_LIMIT_PER_SECOND, RATE_LIMIT_BURST);
+        private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+        // Console output per request would dominate reply latency in busy-poll mode
+        private final boolean logRequests = engine != Engine.BUSY_POLL;
         
-        public ClientHandler(DatagramSocket socket, DatagramPacket receivedPacket) {
-            this.socket = socket;
-            this.receivedPacket = receivedPacket;
+        @Override
+        public boolean admit(InetSocketAddress sender) {
+            return rateLimiter.tryAcquire(sender.getAddress(), sender.getPort());
         }
         
         @Override
-        public void run() {
-            try {
-                // Get client address and port
-                InetAddress clientAddress = receivedPacket.getAddress();
-                int clientPort = receivedPacket.getPort();
-                
-                // Log client request
-                String receivedMessage = new String(receivedPacket.getData(), 0, receivedPacket.getLength());
+        public void handle(String receivedMessage, InetSocketAddress sender, long receivedAt,
+                DatagramTransport<String> transport) throws IOException {
+            // Get client address and port
+            InetAddress clientAddress = sender.getAddress();
+            int clientPort = sender.getPort();
+            
+            // Log client request
+            if (logRequests) {
                 System.out.println("Received from client " + clientAddress + ":" + clientPort + " - " + receivedMessage);
-                
-                // Get current time
-                LocalDateTime now = LocalDateTime.now();
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
-                String timeStr = now.format(formatter);
-                
-                // Create response
-                byte[] sendData = timeStr.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(
-                        sendData, sendData.length, clientAddress, clientPort);
-                
-                // Send response to client
-                socket.send(sendPacket);
+            }
+            
+            // Subscribers get the time pushed to them rather than asking each time
+            if (receivedMessage.startsWith("SUBSCRIBE:") || receivedMessage.startsWith("UNSUBSCRIBE")) {
+                transport.send(subscriptions.handleRequest(receivedMessage, sender), sender);
+                return;
+            }
+            
+            // Send the receive time to client, which is closer to when the client asked
+            // than the time the reply happens to be built. A numbered TIME_REQUEST:<n> gets
+            // its number back as ";seq=<n>", so a late reply cannot pass for a newer one.
+            String timeStr = LocalDateTime.ofInstant(Instant.ofEpochMilli(receivedAt), ZoneId.systemDefault())
+                    .format(formatter);
+            if (receivedMessage.startsWith("TIME_REQUEST:")) {
+                timeStr += ";seq=" + receivedMessage.substring("TIME_REQUEST:".length());
+            }
+            transport.send(timeStr, sender);
+            if (logRequests) {
                 System.out.println("Sent time to client " + clientAddress + ":" + clientPort);
-                
-            } catch (IOException e) {
-                System.err.println("Error handling client request: " + e.getMessage());
             }
         }
     }
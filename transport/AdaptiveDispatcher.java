@@ -0,0 +1,90 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides for each request whether the receive thread runs the handler itself or hands it
+ * to the workers. Running inline saves the handoff, which costs more than a quick handler,
+ * but one slow handler holds up every request behind it. So requests run inline while the
+ * average handler time is low and the workers have nothing queued, spill to the workers
+ * once the average climbs, and come back once it has fallen and the workers are idle.
+ */
+class AdaptiveDispatcher {
+    // Spill above this average handler time, return below the lower one
+    private static final long SPILL_ABOVE_NANOS = 100_000;
+    private static final long RETURN_BELOW_NANOS = 25_000;
+    // The average moves 1/16 of the way towards each new sample
+    private static final int SMOOTHING_SHIFT = 4;
+
+    private final String name;
+    private final AtomicLong averageNanos = new AtomicLong();
+    // Requests handed to the workers and not finished yet
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile boolean spilling;
+    private final AtomicLong inlineCount = new AtomicLong();
+    private final AtomicLong workerCount = new AtomicLong();
+    private final AtomicLong switches = new AtomicLong();
+
+    AdaptiveDispatcher(String name) {
+        this.name = name;
+    }
+
+    // Called on the receive thread for each request
+    boolean shouldRunInline() {
+        long average = averageNanos.get();
+        if (spilling) {
+            if (average >= RETURN_BELOW_NANOS || queued.get() > 0) {
+                return false;
+            }
+            spilling = false;
+            switched("inline", average);
+        } else if (average > SPILL_ABOVE_NANOS) {
+            spilling = true;
+            switched("workers", average);
+            return false;
+        }
+        // Never overtake requests still waiting for a worker
+        return queued.get() == 0;
+    }
+
+    void ranInline(long nanos) {
+        inlineCount.incrementAndGet();
+        record(nanos);
+    }
+
+    void submitted() {
+        queued.incrementAndGet();
+    }
+
+    void ranOnWorker(long nanos) {
+        queued.decrementAndGet();
+        workerCount.incrementAndGet();
+        record(nanos);
+    }
+
+    // The request was never run, e.g. the pool had already been shut down
+    void rejected() {
+        queued.decrementAndGet();
+    }
+
+    private void record(long nanos) {
+        averageNanos.accumulateAndGet(nanos, (average, sample) -> average + ((sample - average) >> SMOOTHING_SHIFT));
+    }
+
+    private void switched(String path, long average) {
+        switches.incrementAndGet();
+        System.out.println(name + ": dispatching on " + path + " (average handler time "
+                + average / 1000 + " us, " + queued.get() + " queued)");
+    }
+
+    @Override
+    public String toString() {
+        return inlineCount.get() + " requests inline, " + workerCount.get() + " on workers, "
+                + switches.get() + " switches, average handler time " + averageNanos.get() / 1000 + " us";
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Turns datagrams into messages and back.
+ */
+public interface Codec<T> {
+    // Called on the receive thread. The buffer is reused for the next datagram, so the
+    // message must not keep a reference to it.
+    T decode(ByteBuffer datagram);
+
+    ByteBuffer encode(T message);
+
+    // Whole datagrams as text
+    static Codec<String> text(Charset charset) {
+        return new Codec<String>() {
+            @Override
+            public String decode(ByteBuffer datagram) {
+                return charset.decode(datagram).toString();
+            }
+
+            @Override
+            public ByteBuffer encode(String message) {
+                return ByteBuffer.wrap(message.getBytes(charset));
+            }
+        };
+    }
+}
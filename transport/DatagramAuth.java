@@ -0,0 +1,106 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session keys and per-datagram tags for authenticated datagrams. An authenticated
+ * datagram is the payload followed by a 64-bit sequence number and the first 16 bytes of
+ * HMAC-SHA256(key, payload || sequence). The sequence must keep growing, so a captured
+ * datagram cannot be replayed.
+ *
+ * Mac instances are expensive to look up, so each thread keeps one and re-keys it per
+ * datagram. Verification reads the payload and tag straight from the receive buffer.
+ */
+public final class DatagramAuth {
+    public static final String ALGORITHM = "HmacSHA256";
+    public static final int KEY_LENGTH = 32;
+    public static final int SEQUENCE_LENGTH = 8;
+    public static final int TAG_LENGTH = 16;
+    // Bytes added to every authenticated datagram
+    public static final int OVERHEAD = SEQUENCE_LENGTH + TAG_LENGTH;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    });
+    // Full HMAC output, one per thread, so verifying allocates nothing
+    private static final ThreadLocal<byte[]> DIGESTS = ThreadLocal.withInitial(() -> new byte[32]);
+
+    private DatagramAuth() {
+    }
+
+    public static SecretKeySpec newKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        RANDOM.nextBytes(key);
+        return new SecretKeySpec(key, ALGORITHM);
+    }
+
+    // Keys travel as URL-safe Base64 without padding, so they fit in "name=value" settings
+    public static String encodeKey(SecretKeySpec key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getEncoded());
+    }
+
+    public static SecretKeySpec decodeKey(String encoded) {
+        return new SecretKeySpec(Base64.getUrlDecoder().decode(encoded), ALGORITHM);
+    }
+
+    // Returns payload || sequence || tag
+    public static byte[] sign(SecretKeySpec key, long sequence, byte[] payload) {
+        byte[] datagram = Arrays.copyOf(payload, payload.length + OVERHEAD);
+        ByteBuffer.wrap(datagram, payload.length, SEQUENCE_LENGTH).putLong(sequence);
+        try {
+            Mac mac = MACS.get();
+            mac.init(key);
+            mac.update(datagram, 0, payload.length + SEQUENCE_LENGTH);
+            byte[] digest = DIGESTS.get();
+            mac.doFinal(digest, 0);
+            System.arraycopy(digest, 0, datagram, payload.length + SEQUENCE_LENGTH, TAG_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign datagram", e);
+        }
+        return datagram;
+    }
+
+    // Checks the tag at the end of the datagram's remaining bytes without moving its
+    // position. Returns the sequence number, or -1 if the datagram is too short or the tag
+    // does not match. The comparison takes the same time wherever the tags differ.
+    public static long verify(SecretKeySpec key, ByteBuffer datagram) {
+        int start = datagram.position();
+        int signedLength = datagram.remaining() - TAG_LENGTH;
+        if (signedLength < SEQUENCE_LENGTH) {
+            return -1;
+        }
+        byte[] digest = DIGESTS.get();
+        try {
+            Mac mac = MACS.get();
+            mac.init(key);
+            mac.update(datagram.slice(start, signedLength));
+            mac.doFinal(digest, 0);
+        } catch (ShortBufferException | InvalidKeyException e) {
+            throw new IllegalStateException("Cannot verify datagram", e);
+        }
+        int tagStart = start + signedLength;
+        int difference = 0;
+        for (int i = 0; i < TAG_LENGTH; i++) {
+            difference |= digest[i] ^ datagram.get(tagStart + i);
+        }
+        return difference == 0 ? datagram.getLong(tagStart - SEQUENCE_LENGTH) : -1;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bound UDP socket plus the thread that reads it. The {@link Engine} decides how the
+ * socket is read and where handlers run; the {@link Codec} and {@link Handler} supply the
+ * protocol. Servers keep their own start/drain/stop entry points and delegate here.
+ *
+ * Only the UDP servers run on it. P2PServer's protocol is a TCP byte stream with
+ * per-connection state, so it keeps its own socket loop.
+ */
+public class DatagramTransport<T> {
+    private static final int BUFFER_SIZE = 1024;
+    // How often a blocked receive wakes up to check whether the transport is draining
+    private static final int RECEIVE_POLL_MS = 250;
+    // While draining, only datagrams already queued in the socket buffer are still read
+    private static final int DRAIN_MAX_DATAGRAMS = 4096;
+
+    private final String name;
+    private final Engine engine;
+    private final Codec<T> codec;
+    private final Handler<T> handler;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private boolean adaptive;
+    private boolean reusePort;
+    // Busy-poll engine: how long to keep spinning after the last datagram, and how long
+    // each park lasts once it gives up
+    private long spinNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private long parkNanos = TimeUnit.MICROSECONDS.toNanos(50);
+    private Path capturePath;
+
+    private volatile boolean running;
+    private DatagramChannel channel;
+    private Selector selector;
+    private ExecutorService executor;
+    private AdaptiveDispatcher dispatcher;
+    private Thread receiveThread;
+    // Only touched by the receive thread once started
+    private TraceWriter trace;
+
+    public DatagramTransport(String name, Engine engine, Codec<T> codec, Handler<T> handler) {
+        this.name = name;
+        this.engine = engine;
+        this.codec = codec;
+        this.handler = handler;
+    }
+
+    // Size of the worker pool for the blocking and selector engines. Zero runs handlers on
+    // the receive thread, one request at a time.
+    public DatagramTransport<T> workers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    // With workers, run quick requests on the receive thread and only hand requests to the
+    // workers while handlers are slow or the workers are still busy. See AdaptiveDispatcher.
+    public DatagramTransport<T> adaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+
+    // Binds with SO_REUSEPORT where the platform supports it, so a newly started server
+    // can bind the same port and take over traffic while this one drains
+    public DatagramTransport<T> reusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    // Spin-then-park settings for the busy-poll engine. A spin time of Long.MAX_VALUE
+    // never parks and keeps one core fully busy.
+    public DatagramTransport<T> busyPoll(long spinNanos, long parkNanos) {
+        this.spinNanos = spinNanos;
+        this.parkNanos = parkNanos;
+        return this;
+    }
+
+    // Records every received datagram, before admission, to a trace file that
+    // TraceReplay can play back later
+    public DatagramTransport<T> capture(Path capturePath) {
+        this.capturePath = capturePath;
+        return this;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // How requests have been split between the receive thread and the workers, or null
+    // when the transport is not adaptive
+    public String getDispatchStats() {
+        return dispatcher == null ? null : dispatcher.toString();
+    }
+
+    // Binds the port and starts receiving
+    public synchronized void start(int port) throws IOException {
+        if (running) {
+            return;
+        }
+
+        channel = DatagramChannel.open();
+        if (reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+
+        Runnable loop;
+        if (engine == Engine.SELECTOR) {
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            loop = this::selectorLoop;
+        } else if (engine == Engine.BUSY_POLL) {
+            channel.configureBlocking(false);
+            loop = this::busyPollLoop;
+        } else {
+            channel.socket().setSoTimeout(RECEIVE_POLL_MS);
+            loop = this::blockingLoop;
+        }
+
+        if (engine == Engine.VIRTUAL) {
+            executor = newVirtualThreadExecutor();
+        } else if (workers > 0 && engine != Engine.BUSY_POLL) {
+            executor = Executors.newFixedThreadPool(workers);
+        }
+        dispatcher = adaptive && executor != null ? new AdaptiveDispatcher(name) : null;
+        if (capturePath != null) {
+            trace = new TraceWriter(capturePath);
+            System.out.println(name + ": capturing received datagrams to " + capturePath);
+            Runnable receive = loop;
+            loop = () -> {
+                try {
+                    receive.run();
+                } finally {
+                    closeTrace();
+                }
+            };
+        }
+        running = true;
+
+        receiveThread = new Thread(loop, name + "-receiver");
+        receiveThread.start();
+    }
+
+    // Stops reading new requests, handles the ones already queued on the socket and lets
+    // the workers finish, then closes the socket. Returns false if the deadline passed first.
+    public synchronized boolean drain(long timeoutMillis) {
+        if (channel == null || !channel.isOpen()) {
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+
+        boolean drained = false;
+        try {
+            receiveThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (executor != null) {
+                executor.shutdown();
+                drained = executor.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } else {
+                // Without workers requests are answered on the receive thread
+                drained = !receiveThread.isAlive();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        stop();
+        return drained;
+    }
+
+    // Stops immediately, abandoning any queued requests
+    public synchronized void stop() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.err.println(name + ": error closing socket: " + e.getMessage());
+        }
+    }
+
+    // Waits for the receive thread, which ends once the transport is drained or stopped
+    public void join() throws InterruptedException {
+        receiveThread.join();
+    }
+
+    // Safe to call from any thread, including handlers
+    public void send(T message, SocketAddress target) throws IOException {
+        RequestEvents.Send event = new RequestEvents.Send();
+        event.begin();
+        int size = channel.send(codec.encode(message), target);
+        if (event.finish()) {
+            event.record(name, RequestEvents.command(message), size, 0);
+        }
+    }
+
+    // For sending one message to many targets: encode it once, then send the buffer,
+    // rewinding it between sends
+    public ByteBuffer encode(T message) {
+        return codec.encode(message);
+    }
+
+    public void sendEncoded(ByteBuffer datagram, SocketAddress target) throws IOException {
+        RequestEvents.Send event = new RequestEvents.Send();
+        event.begin();
+        int position = datagram.position();
+        int size = channel.send(datagram, target);
+        if (event.finish()) {
+            event.record(name, RequestEvents.command(datagram, position), size, 0);
+        }
+    }
+
+    private void blockingLoop() {
+        DatagramSocket socket = channel.socket();
+        byte[] receiveBuffer = new byte[BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+        while (running) {
+            packet.setLength(receiveBuffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println(name + ": receive failed: " + e.getMessage());
+                }
+                return;
+            }
+
+            ByteBuffer datagram = ByteBuffer.wrap(receiveBuffer, 0, packet.getLength());
+            if (!dispatch(datagram, (InetSocketAddress) packet.getSocketAddress(), System.currentTimeMillis())) {
+                return;
+            }
+            handler.endOfBurst();
+        }
+        drainQueued();
+    }
+
+    private void selectorLoop() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        while (running) {
+            try {
+                selector.select(RECEIVE_POLL_MS);
+                selector.selectedKeys().clear();
+
+                // Everything already queued on the socket is read as one burst
+                SocketAddress source;
+                while ((source = channel.receive(receiveBuffer.clear())) != null) {
+                    if (!dispatch(receiveBuffer.flip(), (InetSocketAddress) source, System.currentTimeMillis())) {
+                        return;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.err.println(name + ": receive failed: " + e.getMessage());
+                }
+                return;
+            }
+            handler.endOfBurst();
+        }
+        drainQueued();
+    }
+
+    private void busyPollLoop() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long lastDatagram = System.nanoTime();
+
+        while (running) {
+            SocketAddress source;
+            try {
+                source = channel.receive(receiveBuffer.clear());
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println(name + ": receive failed: " + e.getMessage());
+                }
+                return;
+            }
+
+            if (source == null) {
+                // Keep spinning while traffic is recent, then back off to short parks
+                if (System.nanoTime() - lastDatagram < spinNanos) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(parkNanos);
+                }
+                continue;
+            }
+
+            // Stamped before anything else, so the handler sees the arrival time
+            long receivedAt = System.currentTimeMillis();
+            dispatch(receiveBuffer.flip(), (InetSocketAddress) source, receivedAt);
+            handler.endOfBurst();
+            lastDatagram = System.nanoTime();
+        }
+        drainQueued();
+    }
+
+    // Reads whatever is left in the socket buffer once draining starts, without waiting
+    // for more
+    private void drainQueued() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            channel.configureBlocking(false);
+            SocketAddress source;
+            for (int i = 0; i < DRAIN_MAX_DATAGRAMS
+                    && (source = channel.receive(receiveBuffer.clear())) != null; i++) {
+                if (!dispatch(receiveBuffer.flip(), (InetSocketAddress) source, System.currentTimeMillis())) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Stopped while draining
+        }
+        handler.endOfBurst();
+    }
+
+    // Returns false once the workers have been shut down and nothing more can be handled
+    private boolean dispatch(ByteBuffer datagram, InetSocketAddress sender, long receivedAt) {
+        RequestEvents.Receive received = new RequestEvents.Receive();
+        received.begin();
+        int position = datagram.position();
+        int size = datagram.remaining();
+        if (trace != null) {
+            try {
+                trace.append(sender, datagram);
+            } catch (IOException e) {
+                System.err.println(name + ": capture failed, no longer capturing: " + e.getMessage());
+                closeTrace();
+            }
+        }
+
+        // Shed unwanted senders before any parsing or thread handoff
+        if (!handler.admit(sender) || handler.handleInline(datagram, sender)) {
+            if (received.finish()) {
+                received.record(name, RequestEvents.command(datagram, position), size, 0);
+            }
+            return true;
+        }
+
+        RequestEvents.Parse parsed = new RequestEvents.Parse();
+        parsed.begin();
+        T message = codec.decode(datagram);
+        if (parsed.finish()) {
+            parsed.record(name, RequestEvents.command(message), size, 0);
+        }
+        if (received.finish()) {
+            received.record(name, RequestEvents.command(message), size, 0);
+        }
+
+        if (executor == null) {
+            handle(message, sender, receivedAt, size, 0);
+            return true;
+        }
+        // Only read by the handle event, to tell how long the request sat in the queue
+        long queuedAt = System.nanoTime();
+        if (dispatcher != null) {
+            return dispatchAdaptively(message, sender, receivedAt, size, queuedAt);
+        }
+        try {
+            executor.execute(() -> handle(message, sender, receivedAt, size, queuedAt));
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The drain deadline passed and the pool has been shut down
+            return false;
+        }
+    }
+
+    // Times every handler run, wherever it happens, so the dispatcher can pick the path
+    private boolean dispatchAdaptively(T message, InetSocketAddress sender, long receivedAt, int size, long queuedAt) {
+        if (dispatcher.shouldRunInline()) {
+            long start = System.nanoTime();
+            handle(message, sender, receivedAt, size, 0);
+            dispatcher.ranInline(System.nanoTime() - start);
+            return true;
+        }
+        dispatcher.submitted();
+        try {
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                handle(message, sender, receivedAt, size, queuedAt);
+                dispatcher.ranOnWorker(System.nanoTime() - start);
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            dispatcher.rejected();
+            return false;
+        }
+    }
+
+    private void closeTrace() {
+        if (trace == null) {
+            return;
+        }
+        try {
+            trace.close();
+            System.out.println(name + ": captured " + trace.getRecordCount() + " datagrams to " + capturePath);
+        } catch (IOException e) {
+            System.err.println(name + ": error closing capture: " + e.getMessage());
+        }
+        trace = null;
+    }
+
+    // queuedAt is the nanoTime of the handoff to a worker, or 0 when run where it was received
+    private void handle(T message, InetSocketAddress sender, long receivedAt, int size, long queuedAt) {
+        RequestEvents.Handle event = new RequestEvents.Handle();
+        event.begin();
+        long queueWait = queuedAt == 0 ? 0 : System.nanoTime() - queuedAt;
+        try {
+            handler.handle(message, sender, receivedAt, this);
+        } catch (Exception e) {
+            System.err.println(name + ": error handling request from " + sender + ": " + e.getMessage());
+        }
+        if (event.finish()) {
+            event.record(name, RequestEvents.command(message), size, queueWait);
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is only there from JDK 21, so it is
+    // looked up at run time and the build still targets older JDKs
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println(name + ": virtual threads are not available, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
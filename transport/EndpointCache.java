@@ -0,0 +1,132 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolved host and port pairs, kept as ready-made socket addresses so that sending to a
+ * known endpoint needs no DNS lookup. Entries are looked up again once their TTL has
+ * passed; if that lookup fails the old address keeps being used.
+ *
+ * resolve() still builds a key per call. A caller that sends to the same endpoint over
+ * and over, like a client to its server, holds an {@link Endpoint} instead, which hands
+ * out the same address with no lookup and no allocation until its TTL runs out.
+ */
+public class EndpointCache {
+    private static final long DEFAULT_TTL_MS = 60000;
+    // Beyond this many endpoints expired entries are dropped, and then others if need be,
+    // rather than growing without bound
+    private static final int MAX_ENTRIES = 4096;
+    private static final EndpointCache SHARED = new EndpointCache(DEFAULT_TTL_MS);
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public EndpointCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    // One cache for the whole JVM, for callers that have no reason to keep their own
+    public static EndpointCache shared() {
+        return SHARED;
+    }
+
+    // A handle on one endpoint, resolved now and again only once its TTL has passed
+    public Endpoint endpoint(String host, int port) throws UnknownHostException {
+        return new Endpoint(host, port, resolve(host, port), System.currentTimeMillis() + ttlMillis);
+    }
+
+    public InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+        String key = host + ":" + port;
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && now < entry.expiresAt) {
+            return entry.address;
+        }
+
+        InetSocketAddress address;
+        try {
+            address = new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (UnknownHostException e) {
+            if (entry == null) {
+                throw e;
+            }
+            // A resolver hiccup should not cut off an endpoint that worked a minute ago
+            address = entry.address;
+        }
+
+        if (entry == null && entries.size() >= MAX_ENTRIES) {
+            makeRoom(now);
+        }
+        entries.put(key, new Entry(address, now + ttlMillis));
+        return address;
+    }
+
+    // Drops expired entries, which would be looked up again anyway; only if none have
+    // expired does an arbitrary live one go, so endpoints in use are not all lost at once
+    private void makeRoom(long now) {
+        entries.values().removeIf(entry -> now >= entry.expiresAt);
+        Iterator<String> keys = entries.keySet().iterator();
+        while (entries.size() >= MAX_ENTRIES && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    // Drops an endpoint so the next resolve looks it up again, e.g. after it stopped answering
+    public void invalidate(String host, int port) {
+        entries.remove(host + ":" + port);
+    }
+
+    public final class Endpoint {
+        private final String host;
+        private final int port;
+        private volatile InetSocketAddress address;
+        private volatile long expiresAt;
+
+        private Endpoint(String host, int port, InetSocketAddress address, long expiresAt) {
+            this.host = host;
+            this.port = port;
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+
+        public InetSocketAddress address() {
+            if (System.currentTimeMillis() >= expiresAt) {
+                refresh();
+            }
+            return address;
+        }
+
+        private synchronized void refresh() {
+            long now = System.currentTimeMillis();
+            if (now < expiresAt) {
+                return;
+            }
+            try {
+                address = resolve(host, port);
+            } catch (UnknownHostException e) {
+                // Only possible once the cache has dropped the entry; keep what worked
+            }
+            expiresAt = now + ttlMillis;
+        }
+    }
+
+    private static class Entry {
+        private final InetSocketAddress address;
+        private final long expiresAt;
+
+        Entry(InetSocketAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
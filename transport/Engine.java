@@ -0,0 +1,29 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.util.Locale;
+
+/**
+ * How a {@link DatagramTransport} reads its socket and runs handlers.
+ */
+public enum Engine {
+    // One thread blocks in receive and hands requests to a fixed worker pool
+    BLOCKING,
+    // One thread drains the non-blocking channel whenever the selector reports it readable,
+    // then hands requests to a fixed worker pool
+    SELECTOR,
+    // One thread blocks in receive and runs each request on its own virtual thread, or on
+    // a cached thread pool when the JDK has no virtual threads
+    VIRTUAL,
+    // Latency first: one thread spins on the non-blocking channel and runs every request
+    // itself, with no handoff. It backs off to short parks after a quiet spell.
+    BUSY_POLL;
+
+    // Accepts the names case-insensitively, as given to --engine=, e.g. busy-poll
+    public static Engine parse(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
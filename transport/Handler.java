@@ -0,0 +1,33 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The protocol side of a {@link DatagramTransport}.
+ */
+public interface Handler<T> {
+    // Runs on the receive thread before anything else; returning false drops the datagram
+    default boolean admit(InetSocketAddress sender) {
+        return true;
+    }
+
+    // Runs on the receive thread with the raw datagram, for cheap requests that are not
+    // worth decoding or handing off. Returning true means it has been dealt with.
+    default boolean handleInline(ByteBuffer datagram, InetSocketAddress sender) {
+        return false;
+    }
+
+    // Runs on a worker, or on the receive thread when the transport has no workers.
+    // receivedAt is the wall-clock time in milliseconds at which the datagram was read.
+    void handle(T message, InetSocketAddress sender, long receivedAt, DatagramTransport<T> transport) throws Exception;
+
+    // Runs on the receive thread after each burst of datagrams. The selector engine reads
+    // everything queued on the socket as one burst; the other engines read one at a time.
+    default void endOfBurst() {
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network conditions applied by {@link ImpairmentProxy}, in the spirit of Linux netem.
+ * Written as settings such as "delay=40ms jitter=10ms dist=normal loss=2% dup=0.5%
+ * reorder=5% rate=256kbit limit=1000"; settings that are left out keep their previous
+ * value, and "none" clears everything.
+ */
+public final class Impairment {
+    public enum Distribution { UNIFORM, NORMAL, PARETO }
+
+    public static final Impairment NONE = new Impairment(0, 0, Distribution.UNIFORM, 0, 0, 0, 0, 1000);
+
+    // Pareto delays use this shape, which keeps the mean at twice the jitter above the delay
+    // while still giving a long tail; samples are capped so one packet cannot stall a test
+    private static final double PARETO_SHAPE = 1.5;
+    private static final double PARETO_CAP = 50;
+
+    final long delayNanos;
+    final long jitterNanos;
+    final Distribution distribution;
+    // Probabilities between 0 and 1
+    final double loss;
+    final double duplicate;
+    // A reordered packet skips the delay, so it overtakes the packets queued before it
+    final double reorder;
+    // Link capacity per direction in bytes per second, 0 for unlimited
+    final long bytesPerSecond;
+    // Packets that may wait on the link in each direction before new ones are dropped
+    final int limit;
+
+    private Impairment(long delayNanos, long jitterNanos, Distribution distribution, double loss,
+            double duplicate, double reorder, long bytesPerSecond, int limit) {
+        this.delayNanos = delayNanos;
+        this.jitterNanos = jitterNanos;
+        this.distribution = distribution;
+        this.loss = loss;
+        this.duplicate = duplicate;
+        this.reorder = reorder;
+        this.bytesPerSecond = bytesPerSecond;
+        this.limit = limit;
+    }
+
+    // Applies the settings in spec on top of this one
+    public Impairment with(String spec) {
+        long delay = delayNanos;
+        long jitter = jitterNanos;
+        Distribution dist = distribution;
+        double lossRate = loss;
+        double duplicateRate = duplicate;
+        double reorderRate = reorder;
+        long rate = bytesPerSecond;
+        int queueLimit = limit;
+
+        for (String setting : spec.trim().split("[\\s,]+")) {
+            if (setting.isEmpty()) {
+                continue;
+            }
+            if (setting.equals("none")) {
+                delay = NONE.delayNanos;
+                jitter = NONE.jitterNanos;
+                dist = NONE.distribution;
+                lossRate = NONE.loss;
+                duplicateRate = NONE.duplicate;
+                reorderRate = NONE.reorder;
+                rate = NONE.bytesPerSecond;
+                queueLimit = NONE.limit;
+                continue;
+            }
+            int equals = setting.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected <setting>=<value> but got " + setting);
+            }
+            String key = setting.substring(0, equals).toLowerCase(Locale.ROOT);
+            String value = setting.substring(equals + 1).toLowerCase(Locale.ROOT);
+            switch (key) {
+                case "delay":
+                    delay = parseDuration(value);
+                    break;
+                case "jitter":
+                    jitter = parseDuration(value);
+                    break;
+                case "dist":
+                    dist = Distribution.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "loss":
+                    lossRate = parseProbability(value);
+                    break;
+                case "dup":
+                    duplicateRate = parseProbability(value);
+                    break;
+                case "reorder":
+                    reorderRate = parseProbability(value);
+                    break;
+                case "rate":
+                    rate = parseRate(value);
+                    break;
+                case "limit":
+                    queueLimit = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown setting " + key);
+            }
+        }
+        return new Impairment(delay, jitter, dist, lossRate, duplicateRate, reorderRate, rate, queueLimit);
+    }
+
+    // How long one packet is held, drawn from the configured distribution
+    long sampleDelay(Random random) {
+        if (jitterNanos == 0) {
+            return delayNanos;
+        }
+        double offset;
+        switch (distribution) {
+            case NORMAL:
+                offset = random.nextGaussian();
+                break;
+            case PARETO:
+                offset = Math.min(PARETO_CAP, Math.pow(1 - random.nextDouble(), -1 / PARETO_SHAPE) - 1);
+                break;
+            default:
+                offset = random.nextDouble() * 2 - 1;
+        }
+        return Math.max(0, delayNanos + (long) (offset * jitterNanos));
+    }
+
+    // How long the link is busy sending a packet of this size
+    long transmitNanos(int bytes) {
+        return bytesPerSecond == 0 ? 0 : bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (delayNanos > 0 || jitterNanos > 0) {
+            parts.add("delay " + formatDuration(delayNanos)
+                    + (jitterNanos > 0 ? " +/- " + formatDuration(jitterNanos) + " " + distribution.name().toLowerCase(Locale.ROOT) : ""));
+        }
+        if (loss > 0) {
+            parts.add(String.format("loss %.1f%%", loss * 100));
+        }
+        if (duplicate > 0) {
+            parts.add(String.format("dup %.1f%%", duplicate * 100));
+        }
+        if (reorder > 0) {
+            parts.add(String.format("reorder %.1f%%", reorder * 100));
+        }
+        if (bytesPerSecond > 0) {
+            parts.add("rate " + bytesPerSecond * 8 / 1000 + " kbit/s, limit " + limit);
+        }
+        return parts.isEmpty() ? "no impairment" : String.join(", ", parts);
+    }
+
+    // 40ms, 500us, 1s; a bare number is milliseconds
+    private static long parseDuration(String value) {
+        if (value.endsWith("us")) {
+            return TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("ms")) {
+            return TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("s")) {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+    }
+
+    // 5% or 0.05
+    private static double parseProbability(String value) {
+        double probability = value.endsWith("%")
+                ? Double.parseDouble(value.substring(0, value.length() - 1)) / 100 : Double.parseDouble(value);
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException("Probability out of range: " + value);
+        }
+        return probability;
+    }
+
+    // 256kbit, 2mbit, 9600bit; returned as bytes per second
+    private static long parseRate(String value) {
+        long bits;
+        if (value.endsWith("mbit")) {
+            bits = Long.parseLong(value.substring(0, value.length() - 4)) * 1000000;
+        } else if (value.endsWith("kbit")) {
+            bits = Long.parseLong(value.substring(0, value.length() - 4)) * 1000;
+        } else if (value.endsWith("bit")) {
+            bits = Long.parseLong(value.substring(0, value.length() - 3));
+        } else {
+            throw new IllegalArgumentException("Rates need a unit, e.g. 256kbit: " + value);
+        }
+        return bits / 8;
+    }
+
+    private static String formatDuration(long nanos) {
+        return nanos % 1000000 == 0 ? nanos / 1000000 + "ms" : nanos / 1000 + "us";
+    }
+}
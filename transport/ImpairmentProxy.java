@@ -0,0 +1,459 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A UDP proxy that sits between clients and a server and impairs the traffic both ways
+ * with delay, jitter, loss, duplication, reordering and a bandwidth cap (see
+ * {@link Impairment}). Point a client at the proxy port instead of the server:
+ *
+ *   java com.mycompany.transport.ImpairmentProxy <listen port> <host>:<port>
+ *        [--scenario=<file>] [--seed=<n>] [settings...]
+ *
+ * Each client address gets its own upstream socket, so the server sees one source per
+ * client. A scenario file changes the settings over time, one phase per line:
+ *
+ *   # seconds  settings
+ *   0   delay=20ms jitter=5ms
+ *   10  loss=30%
+ *   20  loss=100%
+ *   30  end
+ *
+ * At the end of every phase the proxy prints, per client, what it did to the traffic,
+ * the goodput delivered to the client and the request latency the client saw, measured
+ * from its first unanswered request to the next reply handed to it, so time spent
+ * waiting out timeouts and retrying counts. All random choices come from one seeded
+ * generator on one thread, so the same traffic meets the same impairments on every run.
+ */
+public class ImpairmentProxy {
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_CLIENTS = 1024;
+
+    private final int listenPort;
+    private final InetSocketAddress target;
+    private final Random random;
+    private final List<Phase> phases;
+    private final Map<SocketAddress, Session> sessions = new LinkedHashMap<>();
+    // Packets waiting out their delay, ordered by when they are due
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>();
+    private final Link upLink = new Link();
+    private final Link downLink = new Link();
+    private Selector selector;
+    private DatagramChannel listener;
+    private Impairment impairment = Impairment.NONE;
+    private long sequence;
+    private volatile boolean running = true;
+
+    public ImpairmentProxy(int listenPort, InetSocketAddress target, long seed, List<Phase> phases) {
+        this.listenPort = listenPort;
+        this.target = target;
+        this.random = new Random(seed);
+        this.phases = phases;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: ImpairmentProxy <listen port> <host>:<port> [--scenario=<file>] [--seed=<n>] [settings...]");
+            return;
+        }
+        int colon = args[1].lastIndexOf(':');
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getByName(args[1].substring(0, colon)),
+                Integer.parseInt(args[1].substring(colon + 1)));
+        long seed = 1;
+        List<Phase> phases = null;
+        StringBuilder settings = new StringBuilder();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--seed=")) {
+                seed = Long.parseLong(args[i].substring("--seed=".length()));
+            } else if (args[i].startsWith("--scenario=")) {
+                phases = readScenario(Files.readAllLines(Paths.get(args[i].substring("--scenario=".length()))));
+            } else {
+                settings.append(args[i]).append(' ');
+            }
+        }
+        if (phases == null) {
+            // A single phase that lasts until the proxy is stopped
+            phases = new ArrayList<>();
+            phases.add(new Phase(0, Impairment.NONE.with(settings.toString())));
+        }
+
+        ImpairmentProxy proxy = new ImpairmentProxy(Integer.parseInt(args[0]), target, seed, phases);
+        Thread loop = new Thread(proxy::run, "impairment-proxy");
+        // Stopping the proxy with Ctrl-C still prints the report for the current phase
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            proxy.running = false;
+            // Ctrl-C can come before open() has made the selector
+            Selector selector = proxy.selector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+            try {
+                loop.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        proxy.open();
+        loop.start();
+        loop.join();
+    }
+
+    // Lines of "<seconds> <settings>", or "<seconds> end" to stop. Each phase starts from
+    // the settings of the one before it.
+    static List<Phase> readScenario(List<String> lines) {
+        List<Phase> phases = new ArrayList<>();
+        Impairment current = Impairment.NONE;
+        for (String line : lines) {
+            int hash = line.indexOf('#');
+            String text = (hash < 0 ? line : line.substring(0, hash)).trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            String[] parts = text.split("\\s+", 2);
+            long startNanos = (long) (Double.parseDouble(parts[0]) * TimeUnit.SECONDS.toNanos(1));
+            String spec = parts.length > 1 ? parts[1] : "";
+            if (spec.equals("end")) {
+                phases.add(new Phase(startNanos, null));
+                break;
+            }
+            current = current.with(spec);
+            phases.add(new Phase(startNanos, current));
+        }
+        return phases;
+    }
+
+    void open() throws IOException {
+        selector = Selector.open();
+        listener = DatagramChannel.open().bind(new InetSocketAddress(listenPort));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_READ);
+        System.out.println("Impairment proxy on port " + listenPort + " forwarding to " + target);
+    }
+
+    void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long start = System.nanoTime();
+        int phase = -1;
+        long phaseStart = start;
+        try {
+            while (running) {
+                long now = System.nanoTime();
+
+                // Move to the next phase once its start time comes round
+                if (phase + 1 < phases.size() && now - start >= phases.get(phase + 1).startNanos) {
+                    if (phase >= 0) {
+                        report(phase, now - phaseStart);
+                    }
+                    phase++;
+                    phaseStart = now;
+                    impairment = phases.get(phase).impairment;
+                    if (impairment == null) {
+                        return;
+                    }
+                    System.out.println("Phase " + (phase + 1) + ": " + impairment);
+                }
+
+                deliverDue(now);
+
+                long wait = nextDeadline(start, phase) - System.nanoTime();
+                if (wait >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+                } else {
+                    selector.selectNow();
+                    if (selector.selectedKeys().isEmpty() && wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Session session = (Session) key.attachment();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    SocketAddress source;
+                    try {
+                        while ((source = channel.receive(buffer.clear())) != null) {
+                            byte[] payload = new byte[buffer.flip().remaining()];
+                            buffer.get(payload);
+                            if (session == null) {
+                                fromClient(source, payload);
+                            } else {
+                                fromServer(session, payload);
+                            }
+                        }
+                    } catch (PortUnreachableException e) {
+                        // The server is down (or was restarted); only this client's upstream
+                        // socket hears about it, and the next request may find it back
+                        if (session == null) {
+                            throw e;
+                        }
+                        session.stats.unreachable++;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.err.println("Impairment proxy failed: " + e.getMessage());
+        } finally {
+            if (phase >= 0 && phase < phases.size() && phases.get(phase).impairment != null) {
+                report(phase, System.nanoTime() - phaseStart);
+            }
+            close();
+        }
+    }
+
+    private void fromClient(SocketAddress client, byte[] payload) throws IOException {
+        Session session = sessions.get(client);
+        if (session == null) {
+            if (sessions.size() >= MAX_CLIENTS) {
+                return;
+            }
+            DatagramChannel upstream = DatagramChannel.open();
+            upstream.connect(target);
+            upstream.configureBlocking(false);
+            session = new Session(client, upstream);
+            upstream.register(selector, SelectionKey.OP_READ, session);
+            sessions.put(client, session);
+        }
+        long now = System.nanoTime();
+        if (session.waitingSince == 0) {
+            session.waitingSince = now;
+            session.stats.requests++;
+        }
+        impair(session, true, payload, now);
+    }
+
+    private void fromServer(Session session, byte[] payload) {
+        impair(session, false, payload, System.nanoTime());
+    }
+
+    // Decides the fate of one packet and queues what survives
+    private void impair(Session session, boolean up, byte[] payload, long now) {
+        Stats stats = session.stats;
+        if (up) {
+            stats.upReceived++;
+        } else {
+            stats.downReceived++;
+        }
+        if (impairment.loss > 0 && random.nextDouble() < impairment.loss) {
+            stats.lost++;
+            return;
+        }
+        int copies = impairment.duplicate > 0 && random.nextDouble() < impairment.duplicate ? 2 : 1;
+        stats.duplicated += copies - 1;
+        for (int i = 0; i < copies; i++) {
+            long delay;
+            if (impairment.reorder > 0 && random.nextDouble() < impairment.reorder) {
+                stats.reordered++;
+                delay = 0;
+            } else {
+                delay = impairment.sampleDelay(random);
+            }
+            Link link = up ? upLink : downLink;
+            if (impairment.bytesPerSecond > 0) {
+                // The link sends one packet at a time; a full queue drops new arrivals
+                if (link.queued >= impairment.limit) {
+                    stats.overflowed++;
+                    continue;
+                }
+                long sendAt = Math.max(now + delay, link.freeAt);
+                link.freeAt = sendAt + impairment.transmitNanos(payload.length);
+                delay = link.freeAt - now;
+                link.queued++;
+            }
+            pending.add(new Pending(now + delay, sequence++, session, up, payload, impairment.bytesPerSecond > 0));
+        }
+    }
+
+    private void deliverDue(long now) throws IOException {
+        Pending next;
+        while ((next = pending.peek()) != null && next.dueNanos <= now) {
+            pending.poll();
+            if (next.onLink) {
+                (next.up ? upLink : downLink).queued--;
+            }
+            Session session = next.session;
+            if (next.up) {
+                try {
+                    session.upstream.write(ByteBuffer.wrap(next.payload));
+                    session.stats.upDelivered++;
+                } catch (PortUnreachableException e) {
+                    // Reported for an earlier packet; this one is lost like it
+                    session.stats.unreachable++;
+                }
+            } else {
+                listener.send(ByteBuffer.wrap(next.payload), session.client);
+                session.stats.downDelivered++;
+                session.stats.downBytes += next.payload.length;
+                // The first reply after a request ends the client's wait for it
+                if (session.waitingSince != 0) {
+                    session.stats.addLatency(now - session.waitingSince);
+                    session.waitingSince = 0;
+                }
+            }
+        }
+    }
+
+    // The next moment something has to happen without a socket becoming readable
+    private long nextDeadline(long start, int phase) {
+        long deadline = Long.MAX_VALUE;
+        Pending next = pending.peek();
+        if (next != null) {
+            deadline = next.dueNanos;
+        }
+        if (phase + 1 < phases.size()) {
+            deadline = Math.min(deadline, start + phases.get(phase + 1).startNanos);
+        }
+        // Wake up now and then so a stop request is noticed
+        return Math.min(deadline, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    private void report(int phase, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Phase %d report (%.1f s, %s):%n", phase + 1, seconds, phases.get(phase).impairment);
+        boolean quiet = true;
+        for (Session session : sessions.values()) {
+            Stats stats = session.stats;
+            if (stats.upReceived == 0 && stats.downReceived == 0) {
+                continue;
+            }
+            quiet = false;
+            System.out.printf("  %s: up %d in/%d out, down %d in/%d out, lost %d, duplicated %d, reordered %d, overflowed %d,"
+                    + " server unreachable %d%n",
+                    session.client, stats.upReceived, stats.upDelivered, stats.downReceived, stats.downDelivered,
+                    stats.lost, stats.duplicated, stats.reordered, stats.overflowed, stats.unreachable);
+            System.out.printf("    goodput %.1f KB/s to the client, %d of %d requests answered",
+                    stats.downBytes / 1024.0 / seconds, stats.latencyCount, stats.requests);
+            if (stats.latencyCount > 0) {
+                long[] sorted = Arrays.copyOf(stats.latencies, stats.latencyCount);
+                Arrays.sort(sorted);
+                System.out.printf(", latency p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                        percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+            }
+            System.out.println();
+            session.stats = new Stats();
+        }
+        if (quiet) {
+            System.out.println("  no traffic");
+        }
+    }
+
+    // Nearest-rank percentile of sorted nanosecond values, in milliseconds
+    private static double percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, rank)] / 1e6;
+    }
+
+    private void close() {
+        try {
+            for (Session session : sessions.values()) {
+                session.upstream.close();
+            }
+            listener.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing impairment proxy: " + e.getMessage());
+        }
+    }
+
+    static class Phase {
+        final long startNanos;
+        // Null for the end of the scenario
+        final Impairment impairment;
+
+        Phase(long startNanos, Impairment impairment) {
+            this.startNanos = startNanos;
+            this.impairment = impairment;
+        }
+    }
+
+    private static class Session {
+        final SocketAddress client;
+        final DatagramChannel upstream;
+        Stats stats = new Stats();
+        // When the oldest request still waiting for a reply arrived, or 0
+        long waitingSince;
+
+        Session(SocketAddress client, DatagramChannel upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+    }
+
+    // Counters for one client over one phase
+    private static class Stats {
+        long upReceived;
+        long upDelivered;
+        long downReceived;
+        long downDelivered;
+        long downBytes;
+        long lost;
+        long duplicated;
+        long reordered;
+        long overflowed;
+        // ICMP port unreachable reports on the upstream socket, e.g. while the server is down
+        long unreachable;
+        long requests;
+        long[] latencies = new long[64];
+        int latencyCount;
+
+        void addLatency(long nanos) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+    }
+
+    // One direction of the emulated link
+    private static class Link {
+        long freeAt;
+        int queued;
+    }
+
+    private static class Pending implements Comparable<Pending> {
+        final long dueNanos;
+        // Keeps packets due at the same moment in arrival order
+        final long sequence;
+        final Session session;
+        final boolean up;
+        final byte[] payload;
+        final boolean onLink;
+
+        Pending(long dueNanos, long sequence, Session session, boolean up, byte[] payload, boolean onLink) {
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+            this.session = session;
+            this.up = up;
+            this.payload = payload;
+            this.onLink = onLink;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            int byDue = Long.compare(dueNanos, other.dueNanos);
+            return byDue != 0 ? byDue : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.function.IntFunction;
+
+/**
+ * Helpers shared by the multicast publisher and the clients that listen to it.
+ */
+public final class Multicast {
+    private static final int BUFFER_SIZE = 1024;
+    // Unicast round trips used to measure the delay to the server before listening
+    private static final int CALIBRATION_ROUND_TRIPS = 5;
+
+    private Multicast() {
+    }
+
+    // Parses group:port, e.g. 239.1.2.3:9870
+    public static InetSocketAddress parseGroup(String value) throws IOException {
+        int colon = value.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("multicast group must be given as address:port");
+        }
+        InetAddress address = InetAddress.getByName(value.substring(0, colon));
+        if (!address.isMulticastAddress()) {
+            throw new IOException(address.getHostAddress() + " is not a multicast address");
+        }
+        return new InetSocketAddress(address, Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    // The named interface, or else the first one that is up and can multicast, preferring
+    // real interfaces over loopback
+    public static NetworkInterface findInterface(String name) throws IOException {
+        if (name != null) {
+            NetworkInterface named = NetworkInterface.getByName(name);
+            if (named == null) {
+                throw new IOException("no network interface named " + name);
+            }
+            return named;
+        }
+        NetworkInterface loopback = null;
+        for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!isUsable(candidate)) {
+                continue;
+            }
+            if (!candidate.isLoopback()) {
+                return candidate;
+            }
+            loopback = candidate;
+        }
+        if (loopback == null) {
+            throw new IOException("no network interface supports multicast");
+        }
+        return loopback;
+    }
+
+    // A channel bound to the group's port that has joined the group
+    public static DatagramChannel join(InetSocketAddress group, NetworkInterface networkInterface) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            // Several listeners on one host share the port
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(group.getPort()));
+            channel.join(group.getAddress(), networkInterface);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Listens to the server's multicast time announcements instead of asking for the time.
+    // A few unicast round trips up front measure the network delay, and half of the best one is added to each announced time to estimate
+    // the local clock's offset. Returns false if the server or the group stays silent.
+    public static boolean listen(InetSocketAddress server, IntFunction<byte[]> request, InetSocketAddress group,
+            String interfaceName, int announcements, int timeoutMillis) {
+        long roundTripNanos = calibrateRoundTrip(server, request, timeoutMillis);
+        if (roundTripNanos < 0) {
+            return false;
+        }
+        System.out.printf("Best round trip to %s: %.1f us%n", name(server), roundTripNanos / 1000.0);
+
+        try (DatagramChannel channel = join(group, findInterface(interfaceName))) {
+            DatagramSocket socket = channel.socket();
+            socket.setSoTimeout(timeoutMillis);
+            byte[] receiveBuffer = new byte[BUFFER_SIZE];
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+            for (int received = 0; received < announcements; ) {
+                receivePacket.setLength(receiveBuffer.length);
+                socket.receive(receivePacket);
+                long localTime = System.currentTimeMillis();
+
+                // TIME:<epoch ms>:<readable time>
+                String[] parts = new String(receivePacket.getData(), 0, receivePacket.getLength()).split(":", 3);
+                if (parts.length < 3 || !parts[0].equals("TIME")) {
+                    continue;
+                }
+                double offsetMillis = Long.parseLong(parts[1]) + roundTripNanos / 2e6 - localTime;
+                System.out.printf("Announced on %s: %s (local clock offset %.2f ms)%n", group, parts[2], offsetMillis);
+                received++;
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            System.out.println("Socket timeout: no announcements on " + group);
+            return false;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Multicast error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Best of a few unicast round trips to the server in nanoseconds, or -1 if it does not
+    // answer. request builds the time request from the local port it is sent from.
+    public static long calibrateRoundTrip(InetSocketAddress server, IntFunction<byte[]> request, int timeoutMillis) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(server);
+            byte[] sendData = request.apply(socket.getLocalPort());
+            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length);
+            byte[] receiveBuffer = new byte[BUFFER_SIZE];
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < CALIBRATION_ROUND_TRIPS; i++) {
+                long start = System.nanoTime();
+                socket.send(sendPacket);
+                receivePacket.setLength(receiveBuffer.length);
+                socket.receive(receivePacket);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            return best;
+        } catch (IOException e) {
+            System.out.println("Round trip calibration with " + name(server) + " failed: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static String name(InetSocketAddress server) {
+        return server.getHostString() + ":" + server.getPort();
+    }
+
+    private static boolean isUsable(NetworkInterface candidate) throws SocketException {
+        return candidate.isUp() && candidate.supportsMulticast()
+                && candidate.getInetAddresses().hasMoreElements();
+    }
+}
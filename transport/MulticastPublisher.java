@@ -0,0 +1,91 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * Sends one message to a multicast group at a fixed rate. However many hosts listen, each
+ * announcement is a single send.
+ */
+public class MulticastPublisher<T> {
+    private final Codec<T> codec;
+    private final InetSocketAddress group;
+    private final NetworkInterface networkInterface;
+    private final long intervalMillis;
+    private final int timeToLive;
+    private final AtomicLong announcements = new AtomicLong();
+    private DatagramChannel channel;
+    private ScheduledExecutorService scheduler;
+
+    public MulticastPublisher(Codec<T> codec, InetSocketAddress group, NetworkInterface networkInterface,
+            long intervalMillis, int timeToLive) {
+        this.codec = codec;
+        this.group = group;
+        this.networkInterface = networkInterface;
+        this.intervalMillis = intervalMillis;
+        this.timeToLive = timeToLive;
+    }
+
+    // Starts announcing; message builds each announcement from the time it is sent
+    public synchronized void start(LongFunction<T> message) throws IOException {
+        if (scheduler != null) {
+            return;
+        }
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+        // Listeners on this host hear the announcements too
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "multicast-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> announce(message), 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing multicast channel: " + e.getMessage());
+            }
+        }
+    }
+
+    public long getAnnouncementCount() {
+        return announcements.get();
+    }
+
+    private void announce(LongFunction<T> message) {
+        // An exception would cancel the schedule, so none may escape
+        try {
+            channel.send(codec.encode(message.apply(System.currentTimeMillis())), group);
+            announcements.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            // Closing the channel on stop fails an announcement in flight, which is expected
+            if (channel.isOpen()) {
+                System.err.println("Multicast announcement to " + group + " failed: " + e.getMessage());
+            }
+        }
+    }
+}
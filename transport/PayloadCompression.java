@@ -0,0 +1,277 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate with a preset dictionary, for payloads that repeat the same text over and
+ * over: USERS: lists and bursts of chat lines. Both ends must use the same dictionary, so
+ * it is agreed on by name ({@link #DEFLATE}) before either side compresses anything.
+ *
+ * Payloads under the minimum size, or that would not shrink, are left alone; compress()
+ * returns null and the caller sends them as they are. Deflaters and inflaters are pooled,
+ * since each one holds native memory that is slow to set up and only freed by end().
+ *
+ *   java com.mycompany.transport.PayloadCompression [users in the largest list]
+ *
+ * measures the CPU cost against the bytes saved for both dictionaries.
+ */
+public final class PayloadCompression {
+    // Name of the only scheme, used when the two sides agree on compression
+    public static final String DEFLATE = "deflate";
+
+    // Preset dictionaries: text the payloads are likely to share, most common last, as
+    // deflate finds the nearest match first
+    public static final byte[] USER_LIST_DICTIONARY = (
+            "user,10.0.0.1,40000;client,172.16.0.1,50000;guest,192.168.1.1,60000;"
+            + "alice,127.0.0.1,5;bob,127.0.0.1,5;,192.168.0.,192.168.1.,10.0.0.,"
+            + "0;1;2;3;4;5;6;7;8;9;,127.0.0.1,5").getBytes(StandardCharsets.UTF_8);
+    public static final byte[] CHAT_LINE_DICTIONARY = (
+            "[Server] The server is shutting down. You will be disconnected.\n"
+            + "[Error] Invalid message format. Use @username message, @ALL message or #channel message.\n"
+            + "[Error] Message too long. Keep it under 500 characters.\n"
+            + "Welcome to the chat, [Server] Joined #[Server] Left #"
+            + " the and you that for with this have are not was what about will can just "
+            + "hello thanks please meeting today tomorrow\n -> You: \n -> #\n -> @ALL: ").getBytes(StandardCharsets.UTF_8);
+
+    // Idle deflaters and inflaters kept per instance; more are made under load and ended
+    // when there is no room to return them
+    private static final int POOL_SIZE = 8;
+
+    private final byte[] dictionary;
+    private final int level;
+    private final int minimumBytes;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    // What compress() has done so far
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    public PayloadCompression(byte[] dictionary, int level, int minimumBytes) {
+        this.dictionary = dictionary == null ? null : dictionary.clone();
+        this.level = level;
+        // Nothing shorter than two bytes can shrink
+        this.minimumBytes = Math.max(2, minimumBytes);
+    }
+
+    // Compresses the remaining bytes of the parts, in order, without moving their
+    // positions. Returns null if they come to less than the minimum or would not shrink.
+    public ByteBuffer compress(ByteBuffer... parts) {
+        int total = 0;
+        for (ByteBuffer part : parts) {
+            total += part.remaining();
+        }
+        if (total < minimumBytes) {
+            skipped.incrementAndGet();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Deflater deflater = borrowDeflater();
+        // Anything that does not fit in fewer bytes than the input is not worth sending
+        byte[] output = new byte[total - 1];
+        int length = 0;
+        try {
+            for (ByteBuffer part : parts) {
+                deflater.setInput(part.duplicate());
+                while (!deflater.needsInput() && length < output.length) {
+                    length += deflater.deflate(output, length, output.length - length);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            if (!deflater.finished()) {
+                skipped.incrementAndGet();
+                return null;
+            }
+        } finally {
+            returnDeflater(deflater);
+            nanos.addAndGet(System.nanoTime() - start);
+        }
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(total);
+        bytesOut.addAndGet(length);
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    // Restores a payload from compress(). maxLength bounds the result, so a small datagram
+    // cannot be made to expand without limit.
+    public byte[] decompress(byte[] data, int offset, int length, int maxLength) throws DataFormatException {
+        Inflater inflater = borrowInflater();
+        try {
+            inflater.setInput(data, offset, length);
+            byte[] output = new byte[Math.min(maxLength, Math.max(64, length * 4))];
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (size == maxLength) {
+                        throw new DataFormatException("Payload expands past " + maxLength + " bytes");
+                    }
+                    output = Arrays.copyOf(output, (int) Math.min(maxLength, size * 2L));
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated payload");
+                }
+                size += inflated;
+            }
+            return size == output.length ? output : Arrays.copyOf(output, size);
+        } finally {
+            returnInflater(inflater);
+        }
+    }
+
+    // Payloads passed to compress(), whether or not they were compressed
+    public long payloads() {
+        return compressed.get() + skipped.get();
+    }
+
+    // One line on what compression has saved, for the servers' periodic stats
+    public String report() {
+        long in = bytesIn.get();
+        long count = compressed.get();
+        return String.format("compressed %d payloads, %d -> %d bytes (%.0f%% saved, %.1f us each), %d left as they were",
+                count, in, bytesOut.get(), in == 0 ? 0.0 : 100.0 * (in - bytesOut.get()) / in,
+                count == 0 ? 0.0 : nanos.get() / 1000.0 / count, skipped.get());
+    }
+
+    private Deflater borrowDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        // reset() drops the dictionary, so it is set again on every use
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        return deflater;
+    }
+
+    private void returnDeflater(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        if (dictionary != null) {
+            inflater.setDictionary(dictionary);
+        }
+        return inflater;
+    }
+
+    private void returnInflater(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    // Compares payload sizes and CPU time with and without the dictionaries, at the fast
+    // and the default level, for user lists and chat bursts of a few sizes
+    public static void main(String[] args) throws DataFormatException {
+        int largestList = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(42);
+
+        System.out.printf("%-22s %-14s %9s %9s %8s %12s %12s%n",
+                "payload", "setting", "bytes", "on wire", "saved", "compress us", "inflate us");
+        for (int users = 10; users <= largestList; users *= 10) {
+            benchmark("USERS: " + users + " users", userList(users, random), USER_LIST_DICTIONARY);
+        }
+        for (int lines : new int[] {1, 5, 20, 100}) {
+            benchmark("burst of " + lines + " lines", chatBurst(lines, random), CHAT_LINE_DICTIONARY);
+        }
+    }
+
+    private static void benchmark(String name, byte[] payload, byte[] dictionary) throws DataFormatException {
+        String[] settings = {"fast", "fast + dict", "default", "default + dict"};
+        for (int i = 0; i < settings.length; i++) {
+            int level = i < 2 ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+            PayloadCompression compression = new PayloadCompression(i % 2 == 1 ? dictionary : null, level, 0);
+            ByteBuffer input = ByteBuffer.wrap(payload);
+            // Enough rounds for about 20 MB of input, after the same again to warm up
+            int rounds = Math.max(200, 20_000_000 / payload.length);
+
+            long sink = 0;
+            ByteBuffer output = null;
+            long compressTime = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                long start = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    output = compression.compress(input);
+                    sink += output == null ? 0 : output.remaining();
+                }
+                compressTime = System.nanoTime() - start;
+            }
+            int onWire = output == null ? payload.length : output.remaining();
+
+            long inflateTime = 0;
+            if (output != null) {
+                for (int pass = 0; pass < 2; pass++) {
+                    long start = System.nanoTime();
+                    for (int round = 0; round < rounds; round++) {
+                        sink += compression.decompress(output.array(), output.arrayOffset() + output.position(),
+                                output.remaining(), payload.length).length;
+                    }
+                    inflateTime = System.nanoTime() - start;
+                }
+            }
+
+            System.out.printf("%-22s %-14s %9d %9d %7.0f%% %12.1f %12.1f%s%n", i == 0 ? name : "", settings[i],
+                    payload.length, onWire, 100.0 * (payload.length - onWire) / payload.length,
+                    compressTime / 1000.0 / rounds, inflateTime / 1000.0 / rounds, sink == 0 ? " (not compressed)" : "");
+        }
+    }
+
+    // A USERS: list body as ChatServer builds it, for hosts on a couple of local networks
+    private static byte[] userList(int users, Random random) {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < users; i++) {
+            String host = random.nextInt(4) == 0 ? "127.0.0.1"
+                    : "192.168." + random.nextInt(4) + "." + (1 + random.nextInt(254));
+            list.append("user").append(random.nextInt(100000)).append(',').append(host).append(',')
+                .append(32768 + random.nextInt(28232)).append(';');
+        }
+        return list.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Lines as P2PServer would batch them for one recipient during a busy moment
+    private static byte[] chatBurst(int lines, Random random) {
+        String[] senders = {"alice", "bob", "carol", "dave", "erin"};
+        String[] targets = {" -> @ALL: ", " -> You: ", " -> #general: ", " -> #ops: "};
+        String[] words = {"the", "deploy", "is", "done", "and", "you", "can", "check", "logs", "now", "thanks",
+            "meeting", "in", "five", "minutes", "please", "join", "build", "failed", "again", "on", "main"};
+        StringBuilder burst = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            burst.append(senders[random.nextInt(senders.length)]).append(targets[random.nextInt(targets.length)]);
+            for (int word = 4 + random.nextInt(12); word > 0; word--) {
+                burst.append(words[random.nextInt(words.length)]).append(word > 1 ? " " : "");
+            }
+            burst.append('\n');
+        }
+        return burst.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
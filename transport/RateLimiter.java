@@ -0,0 +1,173 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-source token bucket limiter. Buckets live in flat primitive arrays keyed by the
+ * source IP and port packed into a long, so no objects are created per sender.
+ */
+public class RateLimiter {
+    private static final long EMPTY = 0L;
+    // Held in a slot while it changes hands, so its bucket can be reset before anyone sees
+    // the new key; packKey() never returns it
+    private static final long CLAIMING = -1L;
+    private static final int PROBE_LIMIT = 8;
+    private static final long IDLE_TIMEOUT_MS = 60000;
+    private static final long SWEEP_INTERVAL_MS = 10000;
+    // Tokens are stored in thousandths so a refill rate of N per second is N per millisecond
+    private static final long TOKEN_SCALE = 1000;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    private final AtomicLongArray keys;
+    // Each bucket packs (last refill time << TOKEN_BITS) | tokens into one long
+    private final AtomicLongArray buckets;
+    private final int mask;
+    private final long ratePerSecond;
+    private final long burst;
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong lastSweep = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDrops;
+
+    public RateLimiter(int capacity, int ratePerSecond, int burst) {
+        int size = Integer.highestOneBit(Math.max(capacity, PROBE_LIMIT) - 1) << 1;
+        this.keys = new AtomicLongArray(size);
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = Math.min((long) burst * TOKEN_SCALE, TOKEN_MASK);
+    }
+
+    // Returns false when the sender has used up its budget and the datagram should be dropped
+    public boolean tryAcquire(InetAddress address, int port) {
+        long now = System.currentTimeMillis() - epoch;
+        long since = lastSweep.get();
+        if (now - since >= SWEEP_INTERVAL_MS && lastSweep.compareAndSet(since, now)) {
+            evictIdle(now);
+        }
+
+        long key = packKey(address, port);
+        int slot = slotFor(key, now);
+        while (true) {
+            long state = buckets.get(slot);
+            // The slot may have been evicted or taken over since it was found. A bucket is
+            // reset before its new key goes in, so a state read while the key still matches
+            // is this sender's, and a takeover after this check makes the CAS below fail.
+            if (keys.get(slot) != key) {
+                slot = slotFor(key, now);
+                continue;
+            }
+            long last = state >>> TOKEN_BITS;
+            long tokens = state & TOKEN_MASK;
+            if (now > last) {
+                tokens = Math.min(burst, tokens + (now - last) * ratePerSecond);
+                last = now;
+            }
+            if (tokens < TOKEN_SCALE) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (buckets.compareAndSet(slot, state, (last << TOKEN_BITS) | (tokens - TOKEN_SCALE))) {
+                return true;
+            }
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Finds the bucket for a key within its probe window, claiming a free slot or
+    // taking over the stalest one when the window is full, so memory stays bounded.
+    // A claimed slot holds CLAIMING until its bucket is reset, so no other sender can
+    // charge or inherit the tokens of the one it replaces.
+    private int slotFor(long key, long now) {
+        int home = (int) (key ^ (key >>> 29) ^ (key >>> 43)) * 0x9E3779B9;
+        while (true) {
+            int free = -1;
+            int stalest = -1;
+            long stalestKey = EMPTY;
+            long stalestTime = Long.MAX_VALUE;
+            boolean claiming = false;
+
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                int slot = (home + i) & mask;
+                long current = keys.get(slot);
+                if (current == key) {
+                    return slot;
+                }
+                if (current == EMPTY) {
+                    if (free < 0) {
+                        free = slot;
+                    }
+                } else if (current == CLAIMING) {
+                    claiming = true;
+                } else {
+                    long last = buckets.get(slot) >>> TOKEN_BITS;
+                    if (last < stalestTime) {
+                        stalestTime = last;
+                        stalest = slot;
+                        stalestKey = current;
+                    }
+                }
+            }
+
+            if (claiming) {
+                // Another thread is putting a key in, maybe this one; it only has to
+                // reset a bucket, so wait for it rather than claim a second slot
+                Thread.onSpinWait();
+                continue;
+            }
+            int slot = free >= 0 ? free : stalest;
+            long expected = free >= 0 ? EMPTY : stalestKey;
+            if (keys.compareAndSet(slot, expected, CLAIMING)) {
+                buckets.set(slot, (now << TOKEN_BITS) | burst);
+                keys.set(slot, key);
+                return slot;
+            }
+        }
+    }
+
+    private void evictIdle(long now) {
+        int evicted = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            long key = keys.get(slot);
+            if (key != EMPTY && key != CLAIMING && now - (buckets.get(slot) >>> TOKEN_BITS) > IDLE_TIMEOUT_MS
+                    && keys.compareAndSet(slot, key, EMPTY)) {
+                evicted++;
+            }
+        }
+        long totalDrops = dropped.get();
+        long droppedSinceLastSweep = totalDrops - reportedDrops;
+        reportedDrops = totalDrops;
+        if (droppedSinceLastSweep > 0 || evicted > 0) {
+            System.out.println("Rate limiter: dropped " + droppedSinceLastSweep
+                    + " datagrams, evicted " + evicted + " idle senders");
+        }
+    }
+
+    // IPv4 sources pack exactly into 48 bits; IPv6 sources are folded into 48 bits
+    // with the top bit set so the two families never collide, and the next bit clear
+    // so no key is ever CLAIMING
+    private static long packKey(InetAddress address, int port) {
+        byte[] ip = address.getAddress();
+        long bits;
+        if (ip.length == 4) {
+            bits = ((ip[0] & 0xFFL) << 24) | ((ip[1] & 0xFFL) << 16) | ((ip[2] & 0xFFL) << 8) | (ip[3] & 0xFFL);
+        } else {
+            long hash = 1125899906842597L;
+            for (byte b : ip) {
+                hash = 31 * hash + b;
+            }
+            bits = (hash & 0x3FFFFFFFFFFFL) | (1L << 47);
+        }
+        return (bits << 16) | (port & 0xFFFF);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes the {@link RequestEvents} in a flight recording, per stage, server and
+ * command, followed by the slowest individual requests:
+ *
+ *   java -XX:StartFlightRecording:filename=chat.jfr ... com.mycompany.chatserver.ChatServer
+ *   java com.mycompany.transport.RecordingSummary chat.jfr [slowest to list]
+ *
+ * Only events over their stage's threshold are in the recording, so the counts are of
+ * slow requests, not of all requests.
+ */
+public class RecordingSummary {
+    private static final String EVENT_PREFIX = "com.mycompany.";
+    // Stages in the order a request passes through them
+    private static final List<String> STAGES = Arrays.asList("Receive", "Parse", "Handle", "Send");
+    private static final int DEFAULT_SLOWEST = 10;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: RecordingSummary <recording.jfr> [slowest to list]");
+            return;
+        }
+        int slowestCount = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SLOWEST;
+
+        // Stage, then "server command", to the durations and queue waits of its events
+        Map<String, Map<String, Samples>> byStage = new TreeMap<>(Comparator.comparingInt(STAGES::indexOf));
+        List<RecordedEvent> slowest = new ArrayList<>();
+        try (RecordingFile recording = new RecordingFile(Paths.get(args[0]))) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String type = event.getEventType().getName();
+                if (!type.startsWith(EVENT_PREFIX)) {
+                    continue;
+                }
+                String stage = type.substring(EVENT_PREFIX.length());
+                if (!STAGES.contains(stage)) {
+                    continue;
+                }
+                String key = event.getString("server") + " " + event.getString("command");
+                byStage.computeIfAbsent(stage, s -> new TreeMap<>())
+                       .computeIfAbsent(key, k -> new Samples())
+                       .add(event.getDuration().toNanos(), event.getLong("queueWait"));
+                keepSlowest(slowest, event, slowestCount);
+            }
+        }
+
+        if (byStage.isEmpty()) {
+            System.out.println("No request events in " + args[0] + ". Was the recording started, and did any request pass a threshold?");
+            return;
+        }
+        for (Map.Entry<String, Map<String, Samples>> stage : byStage.entrySet()) {
+            System.out.println(stage.getKey() + ":");
+            System.out.printf("  %-36s %7s %10s %10s %10s %12s%n", "server / command", "count", "p50 ms", "p99 ms", "max ms", "wait p99 ms");
+            for (Map.Entry<String, Samples> row : stage.getValue().entrySet()) {
+                Samples samples = row.getValue();
+                System.out.printf("  %-36s %7d %10.3f %10.3f %10.3f %12.3f%n", row.getKey(), samples.count,
+                        samples.durationPercentile(0.50), samples.durationPercentile(0.99),
+                        samples.durationPercentile(1.0), samples.waitPercentile(0.99));
+            }
+        }
+
+        System.out.println("Slowest:");
+        slowest.sort((a, b) -> b.getDuration().compareTo(a.getDuration()));
+        for (RecordedEvent event : slowest) {
+            System.out.printf("  %s %-8s %.3f ms  %s %s, %d bytes, waited %.3f ms, thread %s%n",
+                    TIME.format(event.getStartTime()), event.getEventType().getName().substring(EVENT_PREFIX.length()),
+                    millis(event.getDuration().toNanos()), event.getString("server"), event.getString("command"),
+                    event.getInt("payloadSize"), millis(event.getLong("queueWait")),
+                    event.getThread() == null ? "?" : event.getThread().getJavaName());
+        }
+    }
+
+    // Keeps the longest events seen so far, at most limit of them
+    private static void keepSlowest(List<RecordedEvent> slowest, RecordedEvent event, int limit) {
+        if (limit <= 0) {
+            return;
+        }
+        if (slowest.size() < limit) {
+            slowest.add(event);
+            return;
+        }
+        RecordedEvent shortest = slowest.get(0);
+        for (RecordedEvent kept : slowest) {
+            if (kept.getDuration().compareTo(shortest.getDuration()) < 0) {
+                shortest = kept;
+            }
+        }
+        Duration duration = event.getDuration();
+        if (duration.compareTo(shortest.getDuration()) > 0) {
+            slowest.set(slowest.indexOf(shortest), event);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static class Samples {
+        private long[] durations = new long[16];
+        private long[] waits = new long[16];
+        private int count;
+        private boolean sorted;
+
+        void add(long durationNanos, long waitNanos) {
+            if (count == durations.length) {
+                durations = Arrays.copyOf(durations, count * 2);
+                waits = Arrays.copyOf(waits, count * 2);
+            }
+            durations[count] = durationNanos;
+            waits[count] = waitNanos;
+            count++;
+            sorted = false;
+        }
+
+        double durationPercentile(double fraction) {
+            sort();
+            return millis(durations[rank(fraction)]);
+        }
+
+        double waitPercentile(double fraction) {
+            sort();
+            return millis(waits[rank(fraction)]);
+        }
+
+        // Nearest rank
+        private int rank(double fraction) {
+            return Math.max(0, (int) Math.ceil(fraction * count) - 1);
+        }
+
+        // Durations and waits are sorted separately; only their distributions are reported
+        private void sort() {
+            if (!sorted) {
+                Arrays.sort(durations, 0, count);
+                Arrays.sort(waits, 0, count);
+                sorted = true;
+            }
+        }
+    }
+}
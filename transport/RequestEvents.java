@@ -0,0 +1,130 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.nio.ByteBuffer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the stages of one request: receive, parse, handle and
+ * send. Each stage has a threshold, so a recording only holds the slow ones; override
+ * the thresholds in a .jfc settings file. Used the usual JFR way:
+ *
+ *   RequestEvents.Handle event = new RequestEvents.Handle();
+ *   event.begin();
+ *   ...
+ *   if (event.finish()) {
+ *       event.record(server, RequestEvents.command(message), size, queueWait);
+ *   }
+ *
+ * With no recording running, finish() is false and the JIT removes the event allocation,
+ * so an instrumented request pays for little more than the branch. {@link RecordingSummary}
+ * turns a recording into a per-stage breakdown.
+ */
+public final class RequestEvents {
+    // Longest command name kept in an event
+    private static final int MAX_COMMAND_LENGTH = 24;
+
+    private RequestEvents() {
+    }
+
+    @Category({"Chat Servers", "Requests"})
+    @StackTrace(false)
+    public abstract static class Stage extends Event {
+        @Label("Server")
+        String server;
+
+        @Label("Command")
+        String command;
+
+        @Label("Payload Size")
+        @DataAmount
+        int payloadSize;
+
+        @Label("Queue Wait")
+        @Description("Time between the request being handed off and this stage starting")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueWait;
+
+        // Ends the stage and says whether a recording wants it: JFR is on and the stage
+        // took at least its threshold. Only then are the details worth working out.
+        public boolean finish() {
+            end();
+            return shouldCommit();
+        }
+
+        public void record(String server, String command, int payloadSize, long queueWaitNanos) {
+            this.server = server;
+            this.command = command;
+            this.payloadSize = payloadSize;
+            this.queueWait = queueWaitNanos;
+            commit();
+        }
+    }
+
+    @Name("com.mycompany.Receive")
+    @Label("Request Receive")
+    @Description("Receive-side work for one datagram: admission, inline handling and decoding, up to handing it off")
+    @Threshold("1 ms")
+    public static class Receive extends Stage {
+    }
+
+    @Name("com.mycompany.Parse")
+    @Label("Request Parse")
+    @Description("Decoding or parsing one request")
+    @Threshold("500 us")
+    public static class Parse extends Stage {
+    }
+
+    @Name("com.mycompany.Handle")
+    @Label("Request Handle")
+    @Description("Running the handler for one request")
+    @Threshold("1 ms")
+    public static class Handle extends Stage {
+    }
+
+    @Name("com.mycompany.Send")
+    @Label("Request Send")
+    @Description("Writing one reply or batch of replies to the socket")
+    @Threshold("1 ms")
+    public static class Send extends Stage {
+    }
+
+    // The command a message starts with: the text before the first ':', or the first
+    // word, cut short for free-form requests
+    public static String command(Object message) {
+        if (message instanceof ByteBuffer) {
+            ByteBuffer datagram = (ByteBuffer) message;
+            return command(datagram, datagram.position());
+        }
+        String text = String.valueOf(message);
+        int end = 0;
+        while (end < text.length() && end < MAX_COMMAND_LENGTH && text.charAt(end) != ':' && text.charAt(end) != ' ') {
+            end++;
+        }
+        return text.substring(0, end);
+    }
+
+    // Same for an encoded datagram, read from the given absolute position
+    public static String command(ByteBuffer datagram, int position) {
+        StringBuilder command = new StringBuilder();
+        for (int i = position; i < datagram.limit() && command.length() < MAX_COMMAND_LENGTH; i++) {
+            char c = (char) (datagram.get(i) & 0xFF);
+            if (c == ':' || c == ' ') {
+                break;
+            }
+            command.append(c);
+        }
+        return command.toString();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pushes a message to datagram subscribers from one scheduler tick. Each subscriber asks
+ * for an interval, which is rounded to whole ticks, and holds a lease it renews by
+ * subscribing again. Subscribers sit in a timing wheel with one slot per tick, so a tick
+ * only visits the subscribers that are due, and the message is encoded once per tick.
+ *
+ * Pushes are only sent to an address that has shown it receives the server's replies:
+ * the first SUBSCRIBE is answered with a cookie, and only a SUBSCRIBE that echoes it
+ * starts the subscription. A forged source address therefore gets one reply no bigger
+ * than the request, not a stream of pushes.
+ */
+public class Subscriptions<T> {
+    private final DatagramTransport<T> transport;
+    private final long tickMillis;
+    private final int minTicks;
+    private final long leaseMillis;
+    private final int maxSubscribers;
+    private final Map<InetSocketAddress, Subscription> subscribers = new ConcurrentHashMap<>();
+    // Places taken towards maxSubscribers, claimed before a subscriber is added
+    private final AtomicInteger reserved = new AtomicInteger();
+    // Cookies are a MAC of the address and the current lease period, so none are stored
+    private final SecretKeySpec cookieKey = DatagramAuth.newKey();
+    // New subscribers are handed to the tick thread, which owns the wheel
+    private final Queue<Subscription> added = new ConcurrentLinkedQueue<>();
+    private final ArrayList<ArrayList<Subscription>> wheel = new ArrayList<>();
+    private ArrayList<Subscription> spare = new ArrayList<>();
+    private long tick;
+    private ScheduledExecutorService scheduler;
+
+    public Subscriptions(DatagramTransport<T> transport, long tickMillis, long minIntervalMillis,
+            long maxIntervalMillis, long leaseMillis, int maxSubscribers) {
+        this.transport = transport;
+        this.tickMillis = tickMillis;
+        this.minTicks = (int) Math.max(1, minIntervalMillis / tickMillis);
+        this.leaseMillis = leaseMillis;
+        this.maxSubscribers = maxSubscribers;
+        // The longest interval is one full turn of the wheel
+        int slots = (int) Math.max(minTicks, maxIntervalMillis / tickMillis);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(new ArrayList<>());
+        }
+    }
+
+    // Starts pushing; message builds what is sent on a tick from the tick's time
+    public synchronized void start(LongFunction<T> message) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> tick(message), tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    // Answers SUBSCRIBE:<interval ms>[;cookie=<cookie>] and UNSUBSCRIBE;cookie=<cookie>. A
+    // SUBSCRIBE without a valid cookie gets CHALLENGE:cookie=<cookie>, to be sent back in
+    // the next one. UNSUBSCRIBE needs the cookie too, or a forged source address could
+    // cancel someone else's subscription; without it the lease just runs out.
+    public String handleRequest(String request, InetSocketAddress sender) {
+        if (request.startsWith("UNSUBSCRIBE")) {
+            String[] parts = request.split(";cookie=", 2);
+            if (parts.length < 2 || !checkCookie(sender, parts[1].trim())) {
+                return "ERROR:Invalid cookie";
+            }
+            unsubscribe(sender);
+            return "UNSUBSCRIBED";
+        }
+
+        String[] parts = request.substring("SUBSCRIBE:".length()).split(";cookie=", 2);
+        long requestedInterval;
+        try {
+            requestedInterval = Long.parseLong(parts[0].trim());
+        } catch (NumberFormatException e) {
+            return "ERROR:Invalid interval";
+        }
+        if (parts.length < 2 || !checkCookie(sender, parts[1].trim())) {
+            return "CHALLENGE:cookie=" + cookie(sender, currentPeriod());
+        }
+        long interval = subscribe(sender, requestedInterval);
+        if (interval < 0) {
+            return "ERROR:Too many subscribers";
+        }
+        return "SUBSCRIBED:interval=" + interval + ";lease=" + leaseMillis;
+    }
+
+    // Starts or renews a subscription. Returns the interval granted, or -1 when full.
+    // Callers are expected to have checked the subscriber's cookie.
+    public long subscribe(InetSocketAddress subscriber, long requestedIntervalMillis) {
+        int ticks = (int) Math.min(wheel.size(), Math.max(minTicks, requestedIntervalMillis / tickMillis));
+        long expiry = System.currentTimeMillis() + leaseMillis;
+
+        Subscription existing = subscribers.get(subscriber);
+        if (existing == null) {
+            if (reserved.incrementAndGet() > maxSubscribers) {
+                reserved.decrementAndGet();
+                return -1;
+            }
+            Subscription subscription = new Subscription(subscriber, ticks, expiry);
+            existing = subscribers.putIfAbsent(subscriber, subscription);
+            if (existing == null) {
+                added.add(subscription);
+                return ticks * tickMillis;
+            }
+            // Someone else added this subscriber first
+            reserved.decrementAndGet();
+        }
+        // A changed interval applies from the next push
+        existing.intervalTicks = ticks;
+        existing.leaseExpiry = expiry;
+        return ticks * tickMillis;
+    }
+
+    public boolean unsubscribe(InetSocketAddress subscriber) {
+        Subscription subscription = subscribers.remove(subscriber);
+        if (subscription == null) {
+            return false;
+        }
+        reserved.decrementAndGet();
+        subscription.cancelled = true;
+        return true;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    private void tick(LongFunction<T> message) {
+        // An exception would cancel the schedule, so none may escape
+        try {
+            long now = System.currentTimeMillis();
+            int index = (int) (tick % wheel.size());
+            ArrayList<Subscription> due = wheel.get(index);
+
+            // New subscribers get their first push straight away
+            Subscription subscription;
+            while ((subscription = added.poll()) != null) {
+                due.add(subscription);
+            }
+            if (!due.isEmpty()) {
+                // Subscribers with a full-turn interval land back in this slot, so it is
+                // swapped for an empty list while the due ones are worked through
+                wheel.set(index, spare);
+                push(due, transport.encode(message.apply(now)), now);
+                due.clear();
+                spare = due;
+            }
+            tick++;
+        } catch (RuntimeException e) {
+            System.err.println("Subscription tick failed: " + e);
+        }
+    }
+
+    private void push(ArrayList<Subscription> due, ByteBuffer datagram, long now) {
+        for (Subscription subscription : due) {
+            if (subscription.cancelled) {
+                continue;
+            }
+            if (now >= subscription.leaseExpiry) {
+                if (subscribers.remove(subscription.address, subscription)) {
+                    reserved.decrementAndGet();
+                }
+                continue;
+            }
+            try {
+                transport.sendEncoded(datagram.rewind(), subscription.address);
+            } catch (IOException e) {
+                System.err.println("Push to " + subscription.address + " failed: " + e.getMessage());
+            }
+            wheel.get((int) ((tick + subscription.intervalTicks) % wheel.size())).add(subscription);
+        }
+    }
+
+    // Cookies change every lease, and one from the previous lease is still accepted
+    private long currentPeriod() {
+        return System.currentTimeMillis() / leaseMillis;
+    }
+
+    private boolean checkCookie(InetSocketAddress subscriber, String cookie) {
+        byte[] offered = cookie.getBytes(StandardCharsets.US_ASCII);
+        long period = currentPeriod();
+        return MessageDigest.isEqual(offered, cookie(subscriber, period).getBytes(StandardCharsets.US_ASCII))
+                || MessageDigest.isEqual(offered, cookie(subscriber, period - 1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String cookie(InetSocketAddress subscriber, long period) {
+        byte[] address = subscriber.getAddress().getAddress();
+        byte[] endpoint = ByteBuffer.allocate(address.length + 2).put(address).putShort((short) subscriber.getPort()).array();
+        byte[] signed = DatagramAuth.sign(cookieKey, period, endpoint);
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(Arrays.copyOfRange(signed, signed.length - DatagramAuth.TAG_LENGTH, signed.length));
+    }
+
+    private static class Subscription {
+        private final InetSocketAddress address;
+        private volatile int intervalTicks;
+        private volatile long leaseExpiry;
+        private volatile boolean cancelled;
+
+        Subscription(InetSocketAddress address, int intervalTicks, long leaseExpiry) {
+            this.address = address;
+            this.intervalTicks = intervalTicks;
+            this.leaseExpiry = leaseExpiry;
+        }
+    }
+}
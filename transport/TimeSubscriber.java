@@ -0,0 +1,106 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+/**
+ * Client side of {@link Subscriptions}: subscribes to a server's pushed timestamps,
+ * answers its cookie challenge, renews the lease while pushes arrive and unsubscribes
+ * at the end. The time clients call this rather than each speaking the protocol.
+ */
+public final class TimeSubscriber {
+    private static final int BUFFER_SIZE = 1024;
+    // Cookie challenges answered in a row before giving up on a server
+    private static final int MAX_CHALLENGES = 3;
+
+    private TimeSubscriber() {
+    }
+
+    // Prints pushes from the server until updates have arrived. Returns false if the server
+    // does not answer within timeoutMillis, refuses or keeps challenging, so the caller can
+    // try the next one.
+    public static boolean subscribe(InetSocketAddress server, long intervalMillis, int updates, int timeoutMillis) {
+        String name = server.getHostString() + ":" + server.getPort();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeoutMillis);
+            // Only this server talks to the socket, so it is connected, which also skips the
+            // per-send address checks
+            socket.connect(server);
+            byte[] subscribeData = ("SUBSCRIBE:" + intervalMillis).getBytes();
+            DatagramPacket subscribePacket = new DatagramPacket(subscribeData, subscribeData.length);
+            socket.send(subscribePacket);
+            int challenges = 0;
+            String cookie = null;
+
+            byte[] receiveBuffer = new byte[BUFFER_SIZE];
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            long renewEvery = Long.MAX_VALUE;
+            long lastRenewal = System.currentTimeMillis();
+            int received = 0;
+
+            while (received < updates) {
+                receivePacket.setLength(receiveBuffer.length);
+                socket.receive(receivePacket);
+                String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
+
+                // The server first checks that we receive its replies: the cookie it sends
+                // goes into this and every later SUBSCRIBE, and a new one replaces it
+                if (message.startsWith("CHALLENGE:cookie=")) {
+                    if (++challenges > MAX_CHALLENGES) {
+                        System.out.println("Subscription to " + name + " keeps being challenged");
+                        return false;
+                    }
+                    cookie = message.substring("CHALLENGE:cookie=".length());
+                    subscribeData = ("SUBSCRIBE:" + intervalMillis + ";cookie=" + cookie).getBytes();
+                    subscribePacket = new DatagramPacket(subscribeData, subscribeData.length);
+                    socket.send(subscribePacket);
+                    continue;
+                }
+                if (message.startsWith("SUBSCRIBED:")) {
+                    challenges = 0;
+                    // e.g. SUBSCRIBED:interval=1000;lease=30000
+                    for (String setting : message.substring("SUBSCRIBED:".length()).split(";")) {
+                        if (setting.startsWith("lease=")) {
+                            renewEvery = Long.parseLong(setting.substring("lease=".length())) / 3;
+                        }
+                    }
+                    if (received == 0) {
+                        System.out.println("Subscribed to " + name + ": " + message.substring("SUBSCRIBED:".length()));
+                    }
+                    continue;
+                }
+                if (message.startsWith("ERROR:")) {
+                    System.out.println("Subscription refused by " + name + ": " + message.substring("ERROR:".length()));
+                    return false;
+                }
+
+                System.out.println("Pushed time from " + name + ": " + message);
+                received++;
+                if (System.currentTimeMillis() - lastRenewal >= renewEvery) {
+                    socket.send(subscribePacket);
+                    lastRenewal = System.currentTimeMillis();
+                }
+            }
+
+            // Leaving needs the cookie as well; it is always set once pushes have arrived
+            if (cookie != null) {
+                byte[] unsubscribeData = ("UNSUBSCRIBE;cookie=" + cookie).getBytes();
+                socket.send(new DatagramPacket(unsubscribeData, unsubscribeData.length));
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            System.out.println("Socket timeout: no pushes from " + name);
+            return false;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Subscription error: " + e.getMessage());
+            return false;
+        }
+    }
+}
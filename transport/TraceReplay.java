@@ -0,0 +1,231 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a trace written by {@link TraceWriter} back against a server, at the recorded pace,
+ * N times faster, or as fast as possible:
+ *
+ *   java com.mycompany.transport.TraceReplay <trace> <host>:<port> [1|N|max]
+ *
+ * Each recorded source gets its own local socket, so per-source behaviour such as rate
+ * limiting is reproduced. The report compares the achieved rate with the recorded one,
+ * shows how far sends lagged behind the schedule, and gives reply latencies, measured from
+ * the latest send on the socket the reply arrived on.
+ */
+public class TraceReplay {
+    // Sources beyond this many share sockets
+    private static final int MAX_SOCKETS = 1024;
+    // How long to keep listening for replies after the last send
+    private static final long TAIL_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: TraceReplay <trace> <host>:<port> [1|N|max]");
+            return;
+        }
+        List<Record> records = read(Paths.get(args[0]));
+        int colon = args[1].lastIndexOf(':');
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getByName(args[1].substring(0, colon)),
+                Integer.parseInt(args[1].substring(colon + 1)));
+        // Zero means as fast as possible
+        double speed = args.length < 3 ? 1 : args[2].equals("max") ? 0 : Double.parseDouble(args[2]);
+        if (records.isEmpty()) {
+            System.out.println("Trace is empty");
+            return;
+        }
+        replay(records, target, speed);
+    }
+
+    private static void replay(List<Record> records, InetSocketAddress target, double speed) throws IOException, InterruptedException {
+        // One socket per recorded source, handed out in order of first appearance
+        Map<String, Integer> socketFor = new HashMap<>();
+        List<DatagramChannel> sockets = new ArrayList<>();
+        Selector selector = Selector.open();
+        for (Record record : records) {
+            if (!socketFor.containsKey(record.source) && sockets.size() < MAX_SOCKETS) {
+                DatagramChannel socket = DatagramChannel.open();
+                socket.connect(target);
+                socket.configureBlocking(false);
+                socket.register(selector, SelectionKey.OP_READ, sockets.size());
+                socketFor.put(record.source, sockets.size());
+                sockets.add(socket);
+            }
+        }
+        AtomicLongArray lastSend = new AtomicLongArray(sockets.size());
+        Replies replies = new Replies(selector, lastSend);
+        Thread receiver = new Thread(replies, "replay-receiver");
+        receiver.start();
+
+        long[] lag = new long[records.size()];
+        long start = System.nanoTime();
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            long due = speed > 0 ? start + (long) (record.offsetNanos / speed) : System.nanoTime();
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                if (due - now > TimeUnit.MICROSECONDS.toNanos(100)) {
+                    LockSupport.parkNanos(due - now - TimeUnit.MICROSECONDS.toNanos(50));
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+            Integer index = socketFor.get(record.source);
+            int socket = index != null ? index : Math.floorMod(record.source.hashCode(), sockets.size());
+            lastSend.set(socket, now);
+            sockets.get(socket).write(ByteBuffer.wrap(record.payload));
+            lag[i] = now - due;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Thread.sleep(TAIL_MS);
+        replies.stop();
+        receiver.join();
+        for (DatagramChannel socket : sockets) {
+            socket.close();
+        }
+        selector.close();
+
+        double recordedSeconds = Math.max(1, records.get(records.size() - 1).offsetNanos) / 1e9;
+        double replaySeconds = elapsed / 1e9;
+        System.out.printf("Replayed %d datagrams from %d sources in %.3f s (recorded over %.3f s)%n",
+                records.size(), socketFor.size(), replaySeconds, recordedSeconds);
+        System.out.printf("Throughput: %.0f datagrams/s (recorded %.0f/s)%n",
+                records.size() / replaySeconds, records.size() / recordedSeconds);
+        Arrays.sort(lag);
+        if (speed > 0) {
+            System.out.printf("Send lag behind schedule: p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                    percentile(lag, lag.length, 0.50), percentile(lag, lag.length, 0.99), lag[lag.length - 1] / 1000.0);
+        }
+        long[] latencies = replies.latencies();
+        System.out.println("Replies: " + latencies.length);
+        if (latencies.length > 0) {
+            Arrays.sort(latencies);
+            System.out.printf("Reply latency: p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n",
+                    percentile(latencies, latencies.length, 0.50), percentile(latencies, latencies.length, 0.99),
+                    percentile(latencies, latencies.length, 0.999));
+        }
+    }
+
+    // Nearest-rank percentile of the first count sorted values, in microseconds
+    private static double percentile(long[] sorted, int count, double fraction) {
+        int rank = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, rank)] / 1000.0;
+    }
+
+    static List<Record> read(Path path) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (FileChannel file = FileChannel.open(path)) {
+            MappedByteBuffer trace = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            byte[] magic = new byte[TraceWriter.MAGIC.length];
+            trace.get(magic);
+            if (!Arrays.equals(magic, TraceWriter.MAGIC) || trace.getInt() != TraceWriter.VERSION) {
+                throw new IOException(path + " is not a version " + TraceWriter.VERSION + " trace");
+            }
+            trace.getLong();
+            long firstNanos = 0;
+
+            // Pages the writer mapped but never filled read as zero, which ends the trace
+            while (trace.remaining() > 8 + 1) {
+                long offsetNanos = trace.getLong();
+                int addressLength = trace.get();
+                if (addressLength != 4 && addressLength != 16) {
+                    break;
+                }
+                byte[] address = new byte[addressLength];
+                trace.get(address);
+                int port = trace.getShort() & 0xFFFF;
+                byte[] payload = new byte[trace.getShort() & 0xFFFF];
+                trace.get(payload);
+                // Offsets are rebased so the replay starts with the first captured datagram
+                if (records.isEmpty()) {
+                    firstNanos = offsetNanos;
+                }
+                records.add(new Record(offsetNanos - firstNanos, Arrays.toString(address) + ":" + port, payload));
+            }
+        }
+        return records;
+    }
+
+    static class Record {
+        final long offsetNanos;
+        final String source;
+        final byte[] payload;
+
+        Record(long offsetNanos, String source, byte[] payload) {
+            this.offsetNanos = offsetNanos;
+            this.source = source;
+            this.payload = payload;
+        }
+    }
+
+    // Collects replies on every replay socket and times them against the latest send
+    private static class Replies implements Runnable {
+        private final Selector selector;
+        private final AtomicLongArray lastSend;
+        private volatile boolean running = true;
+        private long[] latencies = new long[1024];
+        private int count;
+
+        Replies(Selector selector, AtomicLongArray lastSend) {
+            this.selector = selector;
+            this.lastSend = lastSend;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+            try {
+                while (running) {
+                    selector.select(100);
+                    long now = System.nanoTime();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        DatagramChannel socket = (DatagramChannel) key.channel();
+                        int index = (Integer) key.attachment();
+                        while (socket.receive(buffer.clear()) != null) {
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = now - lastSend.get(index);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                System.err.println("Reply receiver failed: " + e.getMessage());
+            }
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        // Only read after the receiver thread has been joined
+        long[] latencies() {
+            return Arrays.copyOf(latencies, count);
+        }
+    }
+}
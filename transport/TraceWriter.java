@@ -0,0 +1,79 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends received datagrams to a trace file for {@link TraceReplay}. The file is written
+ * through memory-mapped regions, so recording a datagram is a few memory writes on the
+ * receive thread; the kernel flushes the pages in the background.
+ *
+ * Layout: the magic "UDPTRACE", an int version and the capture start in epoch ms, then
+ * one record per datagram: long nanoseconds since the start, byte address length (4 or
+ * 16), the address, unsigned short port, unsigned short payload length, the payload.
+ */
+public class TraceWriter {
+    static final byte[] MAGIC = "UDPTRACE".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 4 + 8;
+    // Files grow one mapped region at a time
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel file;
+    private final long startNanos = System.nanoTime();
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long records;
+
+    public TraceWriter(Path path) throws IOException {
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapRegion(0);
+        region.put(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+    }
+
+    // Only ever called from the receive thread. Leaves the datagram's position alone.
+    public void append(InetSocketAddress sender, ByteBuffer datagram) throws IOException {
+        byte[] address = sender.getAddress().getAddress();
+        int length = datagram.remaining();
+        int size = 8 + 1 + address.length + 2 + 2 + length;
+        if (region.remaining() < size) {
+            mapRegion(regionStart + region.position());
+        }
+        region.putLong(System.nanoTime() - startNanos)
+              .put((byte) address.length)
+              .put(address)
+              .putShort((short) sender.getPort())
+              .putShort((short) length)
+              .put(region.position(), datagram, datagram.position(), length);
+        region.position(region.position() + length);
+        records++;
+    }
+
+    public long getRecordCount() {
+        return records;
+    }
+
+    // Trims the unused tail of the last region and closes the file
+    public void close() throws IOException {
+        long size = regionStart + region.position();
+        region.force();
+        file.truncate(size);
+        file.close();
+    }
+
+    private void mapRegion(long position) throws IOException {
+        regionStart = position;
+        region = file.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+    }
+}